@@ -118,7 +118,16 @@ public @interface AutoConfigureEmbeddedDatabase {
         /**
          * The database will be reset to its initial state after the test class.
          */
-        AFTER_CLASS
+        AFTER_CLASS,
+
+        /**
+         * The database will be reset to its initial state after each test method in the class
+         * by rolling back a transaction held on a pinned connection.
+         *
+         * <p>If the test commits a transaction or uses multiple connections concurrently,
+         * the database is refreshed in the same way as in the {@link #AFTER_EACH_TEST_METHOD} mode.
+         */
+        ROLLBACK
 
     }
 
@@ -34,6 +34,9 @@ import io.zonky.test.db.util.PropertyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.ObjectFactory;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.beans.factory.config.BeanDefinitionHolder;
@@ -57,6 +60,7 @@ import org.springframework.core.Ordered;
 import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.core.env.Environment;
 import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.core.type.AnnotationMetadata;
 import org.springframework.test.context.ContextConfigurationAttributes;
 import org.springframework.test.context.ContextCustomizer;
@@ -131,6 +135,11 @@ public class EmbeddedDatabaseContextCustomizerFactory implements ContextCustomiz
             RootBeanDefinition registrarDefinition = new RootBeanDefinition(EmbeddedDatabaseRegistrar.class);
             registrarDefinition.getConstructorArgumentValues().addIndexedArgumentValue(0, databaseDefinitions);
             registry.registerBeanDefinition(EmbeddedDatabaseRegistrar.BEAN_NAME, registrarDefinition);
+
+            // registered before the configuration classes are processed, so it is instantiated ahead of the application beans
+            RootBeanDefinition starterDefinition = new RootBeanDefinition(EmbeddedDatabaseStarter.class);
+            starterDefinition.getConstructorArgumentValues().addIndexedArgumentValue(0, databaseDefinitions);
+            registry.registerBeanDefinition(EmbeddedDatabaseStarter.BEAN_NAME, starterDefinition);
         }
 
         @Override
@@ -338,6 +347,70 @@ public class EmbeddedDatabaseContextCustomizerFactory implements ContextCustomiz
         }
     }
 
+    /**
+     * Starts the database providers required by the test in the background, in parallel with the creation of the other beans.
+     */
+    protected static class EmbeddedDatabaseStarter implements InitializingBean, BeanFactoryAware, EnvironmentAware {
+
+        protected static final String BEAN_NAME = EmbeddedDatabaseStarter.class.getName();
+
+        private static final SimpleAsyncTaskExecutor taskExecutor = new SimpleAsyncTaskExecutor("database-startup-");
+
+        static {
+            taskExecutor.setDaemon(true);
+        }
+
+        private final Set<DatabaseDefinition> databaseDefinitions;
+
+        private BeanFactory beanFactory;
+        private Environment environment;
+
+        public EmbeddedDatabaseStarter(Set<DatabaseDefinition> databaseDefinitions) {
+            this.databaseDefinitions = databaseDefinitions;
+        }
+
+        @Override
+        public void setBeanFactory(BeanFactory beanFactory) {
+            this.beanFactory = beanFactory;
+        }
+
+        @Override
+        public void setEnvironment(Environment environment) {
+            this.environment = environment;
+        }
+
+        @Override
+        public void afterPropertiesSet() {
+            boolean eagerStartup = environment.getProperty("zonky.test.database.eager-startup.enabled", boolean.class, true);
+            if (!eagerStartup || getDatabaseReplaceMode(environment, databaseDefinitions) == Replace.NONE) {
+                return;
+            }
+
+            Set<DatabaseProvider> providers = new LinkedHashSet<>();
+            for (DatabaseDefinition databaseDefinition : databaseDefinitions) {
+                try {
+                    ProviderResolver providerResolver = beanFactory.getBean(ProviderResolver.class);
+                    DatabaseProviders databaseProviders = beanFactory.getBean(DatabaseProviders.class);
+                    ProviderDescriptor providerDescriptor = providerResolver.getDescriptor(databaseDefinition);
+                    providers.add(databaseProviders.getProvider(providerDescriptor));
+                } catch (RuntimeException e) {
+                    // the error is reported when the database is actually used
+                    logger.trace("Database provider for {} could not be resolved", databaseDefinition, e);
+                }
+            }
+
+            for (DatabaseProvider provider : providers) {
+                taskExecutor.execute(() -> {
+                    try {
+                        provider.warmUp();
+                    } catch (RuntimeException e) {
+                        logger.debug("Database provider {} could not be started in advance, it will be started on first use", provider, e);
+                    }
+                });
+            }
+        }
+    }
+
     protected static Replace getDatabaseReplaceMode(Environment environment, Set<DatabaseDefinition> databaseDefinitions) {
         return databaseDefinitions.isEmpty() ? Replace.NONE :
                 PropertyUtils.getEnumProperty(environment, "zonky.test.database.replace", Replace.class, Replace.ANY);
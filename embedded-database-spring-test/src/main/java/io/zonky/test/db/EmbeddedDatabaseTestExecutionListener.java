@@ -31,12 +31,13 @@ public class EmbeddedDatabaseTestExecutionListener extends AbstractTestExecution
 
     @Override
     public void beforeTestClass(TestContext testContext) {
-        resetDatabases(testContext, RefreshMode.BEFORE_CLASS, RefreshMode.BEFORE_EACH_TEST_METHOD);
+        configureRollback(testContext);
+        resetAndPrepareDatabases(testContext, RefreshMode.BEFORE_CLASS, RefreshMode.BEFORE_EACH_TEST_METHOD);
     }
 
     @Override
     public void prepareTestInstance(TestContext testContext) {
-        captureTestClassPreparers(testContext, RefreshMode.BEFORE_EACH_TEST_METHOD, RefreshMode.AFTER_EACH_TEST_METHOD);
+        captureTestClassPreparers(testContext, RefreshMode.BEFORE_EACH_TEST_METHOD, RefreshMode.AFTER_EACH_TEST_METHOD, RefreshMode.ROLLBACK);
     }
 
     @Override
@@ -46,12 +47,19 @@ public class EmbeddedDatabaseTestExecutionListener extends AbstractTestExecution
 
     @Override
     public void afterTestMethod(TestContext testContext) {
-        resetDatabasesAndApplyTestClassPreparers(testContext, RefreshMode.AFTER_EACH_TEST_METHOD);
+        resetDatabasesAndApplyTestClassPreparers(testContext, RefreshMode.AFTER_EACH_TEST_METHOD, RefreshMode.ROLLBACK);
     }
 
     @Override
     public void afterTestClass(TestContext testContext) {
-        resetDatabases(testContext, RefreshMode.AFTER_CLASS, RefreshMode.AFTER_EACH_TEST_METHOD);
+        resetDatabases(testContext, RefreshMode.AFTER_CLASS, RefreshMode.AFTER_EACH_TEST_METHOD, RefreshMode.ROLLBACK);
+    }
+
+    private void configureRollback(TestContext testContext) {
+        forEachDatabase(testContext, RefreshMode.values(), (context, annotation) -> {
+            Environment environment = testContext.getApplicationContext().getEnvironment();
+            context.setRollbackEnabled(getRefreshMode(annotation, environment) == RefreshMode.ROLLBACK);
+        });
     }
 
     private void resetDatabases(TestContext testContext, RefreshMode... refreshModes) {
@@ -60,6 +68,13 @@ public class EmbeddedDatabaseTestExecutionListener extends AbstractTestExecution
         });
     }
 
+    private void resetAndPrepareDatabases(TestContext testContext, RefreshMode... refreshModes) {
+        forEachDatabase(testContext, refreshModes, (context, annotation) -> {
+            context.reset();
+            context.prepareDatabase();
+        });
+    }
+
     private void resetDatabasesAndApplyTestClassPreparers(TestContext testContext, RefreshMode... refreshModes) {
         forEachDatabase(testContext, refreshModes, (context, annotation) -> {
             context.reset();
@@ -71,6 +86,8 @@ public class EmbeddedDatabaseTestExecutionListener extends AbstractTestExecution
                     context.apply(testPreparer);
                 }
             }
+
+            context.prepareDatabase();
         });
     }
 
@@ -106,11 +123,15 @@ public class EmbeddedDatabaseTestExecutionListener extends AbstractTestExecution
     }
 
     private boolean hasAnyRefreshMode(AutoConfigureEmbeddedDatabase annotation, RefreshMode[] refreshModes, Environment environment) {
-        RefreshMode currentMode = annotation.refresh() != RefreshMode.NEVER ? annotation.refresh() :
-                PropertyUtils.getEnumProperty(environment, "zonky.test.database.refresh", RefreshMode.class, RefreshMode.NEVER);
+        RefreshMode currentMode = getRefreshMode(annotation, environment);
         return Arrays.stream(refreshModes).anyMatch(mode -> mode == currentMode);
     }
 
+    private RefreshMode getRefreshMode(AutoConfigureEmbeddedDatabase annotation, Environment environment) {
+        return annotation.refresh() != RefreshMode.NEVER ? annotation.refresh() :
+                PropertyUtils.getEnumProperty(environment, "zonky.test.database.refresh", RefreshMode.class, RefreshMode.NEVER);
+    }
+
     private DatabaseContext getDatabaseContext(ApplicationContext applicationContext, String beanName) {
         if (StringUtils.hasText(beanName)) {
             String databaseContextBeanName = beanName + "Context";
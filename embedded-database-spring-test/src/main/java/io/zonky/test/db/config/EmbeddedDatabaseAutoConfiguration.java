@@ -148,7 +148,8 @@ public class EmbeddedDatabaseAutoConfiguration implements BeanClassLoaderAware {
     @ConditionalOnMissingBean(name = "mySqlDatabaseProviderFactory")
     public DatabaseProviderFactory mySqlDatabaseProviderFactory(DatabaseProviderFactory defaultDatabaseProviderFactory) {
         return defaultDatabaseProviderFactory.customizeProvider((builder, provider) ->
-                builder.optimizingProvider(provider));
+                builder.optimizingProvider(
+                        builder.prefetchingProvider(provider)));
     }
 
     @Bean
@@ -156,7 +157,8 @@ public class EmbeddedDatabaseAutoConfiguration implements BeanClassLoaderAware {
     @ConditionalOnMissingBean(name = "mariaDbDatabaseProviderFactory")
     public DatabaseProviderFactory mariaDbDatabaseProviderFactory(DatabaseProviderFactory defaultDatabaseProviderFactory) {
         return defaultDatabaseProviderFactory.customizeProvider((builder, provider) ->
-                builder.optimizingProvider(provider));
+                builder.optimizingProvider(
+                        builder.prefetchingProvider(provider)));
     }
 
     @Bean
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.context;
+
+import io.zonky.test.db.provider.EmbeddedDatabase;
+import org.springframework.aop.framework.ProxyFactory;
+
+/**
+ * Embedded database wrapper that detects whether the database may have been modified
+ * through the connections obtained from it.
+ */
+public interface ChangeTrackingDataSource extends EmbeddedDatabase {
+
+    boolean hasChanges();
+
+    static ChangeTrackingDataSource wrap(EmbeddedDatabase database) {
+        ProxyFactory proxyFactory = new ProxyFactory(database);
+        proxyFactory.addAdvice(new ChangeTrackingMethodInterceptor());
+        proxyFactory.addInterface(ChangeTrackingDataSource.class);
+        return (ChangeTrackingDataSource) proxyFactory.getProxy();
+    }
+
+}
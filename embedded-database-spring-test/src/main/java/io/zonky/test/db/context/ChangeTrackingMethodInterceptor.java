@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.context;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Wrapper;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Method interceptor that conservatively marks the database as changed whenever a statement
+ * that is not known to be read-only is executed or when the raw JDBC objects are unwrapped.
+ * Note that changes made by functions invoked from select statements are not detected.
+ */
+class ChangeTrackingMethodInterceptor implements MethodInterceptor {
+
+    private static final Pattern COMMENTS_PATTERN = Pattern.compile("(?s)(/\\*.*?\\*/|--[^\\n]*)");
+    private static final Pattern READ_ONLY_PATTERN = Pattern.compile("(?is)^[\\s(]*(select|show|values|table|explain|with|set|begin|start\\s+transaction|commit|rollback|savepoint|release)\\b.*");
+    private static final Pattern UNSAFE_PATTERN = Pattern.compile("(?is).*\\b(insert|update|delete|merge|into|nextval|setval|analyze|alter|create|drop|truncate)\\b.*");
+    private static final Pattern UNSAFE_SET_PATTERN = Pattern.compile("(?is)^[\\s(]*set\\s+(identity_insert|global|persist)\\b.*");
+
+    private final AtomicBoolean changed;
+    private final String sql;
+
+    ChangeTrackingMethodInterceptor() {
+        this(new AtomicBoolean(), null);
+    }
+
+    private ChangeTrackingMethodInterceptor(AtomicBoolean changed, String sql) {
+        this.changed = changed;
+        this.sql = sql;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Method method = invocation.getMethod();
+        String methodName = method.getName();
+        Object[] arguments = invocation.getArguments();
+
+        if (method.getDeclaringClass() == ChangeTrackingDataSource.class && methodName.equals("hasChanges")) {
+            return changed.get();
+        }
+
+        if (method.getDeclaringClass() == Wrapper.class && methodName.equals("unwrap")) {
+            changed.set(true);
+            return invocation.proceed();
+        }
+
+        if (Statement.class.isAssignableFrom(method.getDeclaringClass())) {
+            trackStatement(methodName, arguments);
+        }
+
+        if (Connection.class.isAssignableFrom(method.getDeclaringClass())) {
+            trackConnection(methodName, arguments);
+        }
+
+        Object result = invocation.proceed();
+
+        if (result instanceof Connection) {
+            return createTrackingProxy(result, Connection.class, null);
+        } else if (result instanceof Statement && !(result instanceof ResultSet)) {
+            String sql = methodName.startsWith("prepare") && arguments.length > 0 && arguments[0] instanceof String ? (String) arguments[0] : null;
+            return createTrackingProxy(result, method.getReturnType(), sql);
+        } else {
+            return result;
+        }
+    }
+
+    private void trackConnection(String methodName, Object[] arguments) {
+        if (methodName.equals("prepareCall")) {
+            changed.set(true);
+        } else if (methodName.equals("createStatement") && arguments.length >= 2 && isUpdatable(arguments[1])) {
+            changed.set(true);
+        } else if (methodName.equals("prepareStatement") && arguments.length >= 3 && isUpdatable(arguments[2])) {
+            changed.set(true);
+        }
+    }
+
+    private static boolean isUpdatable(Object resultSetConcurrency) {
+        return Integer.valueOf(ResultSet.CONCUR_UPDATABLE).equals(resultSetConcurrency);
+    }
+
+    private void trackStatement(String methodName, Object[] arguments) {
+        if (!methodName.startsWith("execute") && !methodName.equals("addBatch")) {
+            return;
+        }
+        if (arguments.length > 0 && arguments[0] instanceof String) {
+            trackSql((String) arguments[0]);
+        } else if (arguments.length == 0) {
+            trackSql(sql);
+        }
+    }
+
+    private void trackSql(String sql) {
+        if (!changed.get() && !isReadOnly(sql)) {
+            changed.set(true);
+        }
+    }
+
+    static boolean isReadOnly(String sql) {
+        if (sql == null) {
+            return false;
+        }
+        String statement = COMMENTS_PATTERN.matcher(sql).replaceAll(" ");
+        return READ_ONLY_PATTERN.matcher(statement).matches()
+                && !UNSAFE_PATTERN.matcher(statement).matches()
+                && !UNSAFE_SET_PATTERN.matcher(statement).matches();
+    }
+
+    private Object createTrackingProxy(Object target, Class<?> type, String sql) {
+        ProxyFactory proxyFactory = new ProxyFactory(target);
+        proxyFactory.addAdvice(new ChangeTrackingMethodInterceptor(changed, sql));
+        proxyFactory.addInterface(type);
+        return proxyFactory.getProxy();
+    }
+}
@@ -35,6 +35,20 @@ public interface DatabaseContext {
 
     void reset();
 
+    /**
+     * Requests the next database in advance, so that it is ready by the time the next test needs it.
+     */
+    default void prepareDatabase() {
+        // nothing to do
+    }
+
+    /**
+     * Enables or disables handing out of the database through a pinned transaction that is rolled back on reset.
+     */
+    default void setRollbackEnabled(boolean enabled) {
+        // nothing to do
+    }
+
     enum ContextState {
 
         INITIALIZING,
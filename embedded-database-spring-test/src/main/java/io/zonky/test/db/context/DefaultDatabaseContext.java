@@ -28,6 +28,8 @@ import io.zonky.test.db.preparer.RecordingDataSource;
 import io.zonky.test.db.preparer.ReplayableDatabasePreparer;
 import io.zonky.test.db.provider.DatabaseProvider;
 import io.zonky.test.db.provider.EmbeddedDatabase;
+import io.zonky.test.db.provider.common.PriorityThreadPoolTaskExecutor;
+import io.zonky.test.db.provider.support.DatabaseReaper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.aop.framework.AopProxyUtils;
@@ -37,18 +39,25 @@ import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.context.EnvironmentAware;
 import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
 import org.springframework.core.task.AsyncTaskExecutor;
-import org.springframework.core.task.SimpleAsyncTaskExecutor;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.core.task.support.TaskExecutorAdapter;
 import org.springframework.test.context.transaction.TestTransaction;
+import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.SettableListenableFuture;
 
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 
@@ -58,28 +67,56 @@ import static io.zonky.test.db.context.DefaultDatabaseContext.DatabaseState.DIRT
 import static io.zonky.test.db.context.DefaultDatabaseContext.DatabaseState.FRESH;
 import static io.zonky.test.db.context.DefaultDatabaseContext.DatabaseState.RECORDING;
 import static io.zonky.test.db.context.DefaultDatabaseContext.DatabaseState.RESET;
+import static io.zonky.test.db.context.DefaultDatabaseContext.DatabaseState.TRACKED;
 import static io.zonky.test.db.context.DefaultDatabaseContext.ExecutionPhase.INITIALIZING;
 import static io.zonky.test.db.context.DefaultDatabaseContext.ExecutionPhase.TEST_EXECUTION;
 import static io.zonky.test.db.context.DefaultDatabaseContext.ExecutionPhase.TEST_PREPARATION;
-import static org.springframework.aop.interceptor.AsyncExecutionAspectSupport.DEFAULT_TASK_EXECUTOR_BEAN_NAME;
+import static org.springframework.core.Ordered.HIGHEST_PRECEDENCE;
+import static org.springframework.core.Ordered.LOWEST_PRECEDENCE;
 
-public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, BeanFactoryAware, DisposableBean {
+public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, BeanFactoryAware, EnvironmentAware, DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(DefaultDatabaseContext.class);
 
+    private static final DatabaseReaper reaper = new DatabaseReaper(null, e -> false);
+
+    public static final String BOOTSTRAP_EXECUTOR_BEAN_NAME = "embeddedDatabaseBootstrapExecutor";
+
+    protected static final PriorityThreadPoolTaskExecutor defaultBootstrapExecutor = new PriorityThreadPoolTaskExecutor();
+
+    static {
+        defaultBootstrapExecutor.setThreadNamePrefix("database-bootstrap-");
+        defaultBootstrapExecutor.setDaemon(true);
+        defaultBootstrapExecutor.setAllowCoreThreadTimeOut(true);
+        defaultBootstrapExecutor.setKeepAliveSeconds(60);
+        defaultBootstrapExecutor.setCorePoolSize(3);
+        defaultBootstrapExecutor.initialize();
+    }
+
     protected final DatabaseProvider databaseProvider;
 
     protected final List<DatabasePreparer> corePreparers = new LinkedList<>();
     protected final List<DatabasePreparer> testPreparers = new LinkedList<>();
 
+    protected final Map<Thread, DatabaseLease> leases = new ConcurrentHashMap<>();
+    protected final Set<Thread> unleasedThreads = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
     protected String beanName;
-    protected Thread mainThread;
+    protected volatile Thread mainThread;
     protected AsyncTaskExecutor bootstrapExecutor;
+    protected boolean leasingEnabled;
+    protected boolean changeTrackingEnabled;
+    protected boolean rollbackEnabled;
+    protected boolean incrementalResetEnabled;
 
-    protected ExecutionPhase executionPhase = INITIALIZING;
+    protected volatile ExecutionPhase executionPhase = INITIALIZING;
     protected DatabaseState databaseState = RESET;
 
     protected Future<EmbeddedDatabase> database;
+    protected volatile EmbeddedDatabase publishedDatabase;
+    protected ChangeTrackingDataSource trackedDatabase;
+    protected RollbackDataSource rollbackDatabase;
+    protected List<DatabasePreparer> databasePreparers;
 
     public DefaultDatabaseContext(ObjectFactory<DatabaseProvider> databaseProviderFactory) {
         this.databaseProvider = databaseProviderFactory.getObject();
@@ -95,18 +132,44 @@ public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, B
         this.bootstrapExecutor = determineBootstrapExecutor(beanFactory);
     }
 
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.leasingEnabled = environment.getProperty("zonky.test.database.leasing.enabled", boolean.class, false);
+        this.changeTrackingEnabled = environment.getProperty("zonky.test.database.change-tracking.enabled", boolean.class, false);
+        this.incrementalResetEnabled = environment.getProperty("zonky.test.database.incremental-reset.enabled", boolean.class, false);
+    }
+
     @Override
     public synchronized List<DatabasePreparer> getCorePreparers() {
         return ImmutableList.copyOf(corePreparers);
     }
 
     @Override
-    public synchronized List<DatabasePreparer> getTestPreparers() {
-        return ImmutableList.copyOf(testPreparers);
+    public List<DatabasePreparer> getTestPreparers() {
+        DatabaseLease lease = currentLease();
+        if (lease != null) {
+            return lease.getTestPreparers();
+        }
+        synchronized (this) {
+            return ImmutableList.copyOf(testPreparers);
+        }
     }
 
     @Override
-    public synchronized EmbeddedDatabase getDatabase() {
+    public EmbeddedDatabase getDatabase() {
+        DatabaseLease lease = currentLease();
+        if (lease != null) {
+            return lease.getDatabase();
+        }
+        warnIfUnleasedThread();
+        EmbeddedDatabase database = publishedDatabase;
+        if (database != null) {
+            return database;
+        }
+        return getSharedDatabase();
+    }
+
+    protected synchronized EmbeddedDatabase getSharedDatabase() {
         if (databaseState == RESET && !isRefreshAllowed()) {
             return awaitDatabase();
         }
@@ -115,11 +178,33 @@ public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, B
             refreshDatabase();
         }
 
-        if (executionPhase != INITIALIZING && databaseState != DIRTY) {
-            databaseState = DIRTY;
+        if (executionPhase != INITIALIZING && databaseState != DIRTY && databaseState != TRACKED) {
+            if (rollbackEnabled && testPreparers.isEmpty()) {
+                if (rollbackDatabase == null) {
+                    rollbackDatabase = RollbackDataSource.wrap(awaitDatabase());
+                }
+                databaseState = DIRTY;
+            } else if (changeTrackingEnabled) {
+                trackedDatabase = ChangeTrackingDataSource.wrap(awaitDatabase());
+                databaseState = TRACKED;
+            } else {
+                databaseState = DIRTY;
+            }
         }
 
-        if (executionPhase != INITIALIZING || databaseState == RECORDING) {
+        if (databaseState == TRACKED) {
+            publishedDatabase = trackedDatabase;
+            return publishedDatabase;
+        }
+
+        if (databaseState == DIRTY) {
+            // a dirty database stays the same until the next state transition,
+            // so it can be safely published for the lock-free access from getDatabase()
+            publishedDatabase = rollbackDatabase != null ? rollbackDatabase : awaitDatabase();
+            return publishedDatabase;
+        }
+
+        if (databaseState == RECORDING) {
             return awaitDatabase();
         }
 
@@ -144,14 +229,21 @@ public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, B
 
     @Override
     public ContextState getState() {
-        if (executionPhase == INITIALIZING) {
-            return ContextState.INITIALIZING;
-        } else if (databaseState == DIRTY) {
-            return ContextState.DIRTY;
-        } else if (!testPreparers.isEmpty()) {
-            return ContextState.AHEAD;
-        } else {
-            return ContextState.FRESH;
+        DatabaseLease lease = currentLease();
+        if (lease != null) {
+            return lease.getState();
+        }
+        // the tracked database is replaced by refreshes, so it must be read together with the database state
+        synchronized (this) {
+            if (executionPhase == INITIALIZING) {
+                return ContextState.INITIALIZING;
+            } else if (databaseState == DIRTY || (databaseState == TRACKED && trackedDatabase.hasChanges())) {
+                return ContextState.DIRTY;
+            } else if (!testPreparers.isEmpty()) {
+                return ContextState.AHEAD;
+            } else {
+                return ContextState.FRESH;
+            }
         }
     }
 
@@ -166,39 +258,106 @@ public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, B
     }
 
     @EventListener
-    public synchronized void handleTestStarted(TestExecutionStartedEvent event) {
-        executionPhase = TEST_EXECUTION;
-
-        if (databaseState == RESET) {
-            refreshDatabase();
+    public void handleTestStarted(TestExecutionStartedEvent event) {
+        DatabaseLease lease = acquireLease();
+        if (lease != null) {
+            reportDatabase(lease.awaitDatabase(), event);
+            return;
         }
+        synchronized (this) {
+            executionPhase = TEST_EXECUTION;
 
-        String databaseBeanName = beanName.substring(0, beanName.length() - "Context".length());
-        EmbeddedDatabaseReporter.reportDataSource(databaseBeanName, awaitDatabase(), event.getTestMethod());
+            if (databaseState == RESET) {
+                refreshDatabase();
+            }
 
-        logger.trace("Execution phase has been changed to {} - context={}", executionPhase, beanName);
+            reportDatabase(awaitDatabase(), event);
+            logger.trace("Execution phase has been changed to {} - context={}", executionPhase, beanName);
+        }
     }
 
     @EventListener
-    public synchronized void handleTestFinished(TestExecutionFinishedEvent event) {
-        executionPhase = TEST_PREPARATION;
-        logger.trace("Execution phase has been changed to {} - context={}", executionPhase, beanName);
+    public void handleTestFinished(TestExecutionFinishedEvent event) {
+        if (currentLease() != null) {
+            return;
+        }
+        synchronized (this) {
+            executionPhase = TEST_PREPARATION;
+            logger.trace("Execution phase has been changed to {} - context={}", executionPhase, beanName);
+        }
+    }
+
+    @Override
+    public void reset() {
+        DatabaseLease lease = acquireLease();
+        if (lease != null) {
+            checkState(!TestTransaction.isActive(), "Cannot reset the data source context without ending the existing transaction first");
+            lease.reset();
+            return;
+        }
+        synchronized (this) {
+            checkState(getState() != ContextState.INITIALIZING, "Data source context must be initialized");
+            checkState(!TestTransaction.isActive(), "Cannot reset the data source context without ending the existing transaction first");
+
+            if (getState() != ContextState.FRESH) {
+                testPreparers.clear();
+
+                if (rollbackDatabase != null && rollbackDatabase.rollback()) {
+                    logger.trace("Database changes have been rolled back - context={}", beanName);
+                    publishedDatabase = null;
+                    databaseState = FRESH;
+                } else {
+                    resetDatabase();
+                }
+            }
+        }
     }
 
     @Override
-    public synchronized void reset() {
-        checkState(getState() != ContextState.INITIALIZING, "Data source context must be initialized");
-        checkState(!TestTransaction.isActive(), "Cannot reset the data source context without ending the existing transaction first");
+    public void prepareDatabase() {
+        if (acquireLease() != null) {
+            return;
+        }
+        synchronized (this) {
+            if (databaseState == RESET && executionPhase != INITIALIZING && isRefreshAllowed()) {
+                logger.trace("Requesting a new database in advance - context={}", beanName);
+                refreshDatabase(true);
+            }
+        }
+    }
 
-        if (getState() != ContextState.FRESH) {
-            testPreparers.clear();
-            resetDatabase();
+    @Override
+    public synchronized void setRollbackEnabled(boolean enabled) {
+        if (rollbackEnabled != enabled) {
+            logger.trace("Rollback mode has been {} - context={}", enabled ? "enabled" : "disabled", beanName);
+        }
+        rollbackEnabled = enabled;
+
+        if (!enabled) {
+            leases.values().forEach(DatabaseLease::disableRollback);
+        }
+        if (!enabled && rollbackDatabase != null) {
+            boolean rolledBack = rollbackDatabase.rollback();
+            releaseRollbackDatabase();
+            if (rolledBack && databaseState == DIRTY) {
+                databaseState = FRESH;
+            }
         }
     }
 
     @Override
-    public synchronized void apply(DatabasePreparer preparer) {
+    public void apply(DatabasePreparer preparer) {
         checkNotNull(preparer, "Preparer must not be null");
+
+        DatabaseLease lease = acquireLease();
+        if (lease != null) {
+            lease.apply(preparer);
+        } else {
+            applySharedPreparer(preparer);
+        }
+    }
+
+    protected synchronized void applySharedPreparer(DatabasePreparer preparer) {
         stopRecording();
 
         if (getState() == ContextState.INITIALIZING) {
@@ -209,7 +368,7 @@ public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, B
             resetDatabase();
         } else {
             try {
-                preparer.prepare(awaitDatabase());
+                preparer.prepare(rollbackDatabase != null ? rollbackDatabase : awaitDatabase());
             } catch (SQLException e) {
                 throw new IllegalStateException("Unknown error when applying the preparer", e);
             }
@@ -217,17 +376,76 @@ public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, B
     }
 
     @Override
-    public synchronized void destroy() {
+    public void destroy() {
         logger.trace("Closing database context bean - context={}", beanName);
-        if (database != null) {
-            try {
-                awaitDatabase().close();
-            } catch (Throwable t) {
-                // TODO: do nothing - consider logging the error
+        leases.values().forEach(DatabaseLease::close);
+        leases.clear();
+
+        synchronized (this) {
+            releaseRollbackDatabase();
+            if (database != null) {
+                try {
+                    awaitDatabase().close();
+                } catch (Throwable t) {
+                    // TODO: do nothing - consider logging the error
+                }
             }
         }
     }
 
+    /**
+     * Returns the lease bound to the current thread, or {@code null} if the thread uses the shared database.
+     * <p>
+     * Leases are bound to the threads executing the tests, so any work handed over by a test to another thread,
+     * e.g. through {@code @Async} methods, executors or reactive schedulers, uses the shared database instead of the leased one.
+     */
+    protected DatabaseLease currentLease() {
+        return leasingEnabled && !leases.isEmpty() ? leases.get(Thread.currentThread()) : null;
+    }
+
+    /**
+     * Returns the lease bound to the current thread, creating it if necessary.
+     * The main thread and the threads used during the context initialization always use the shared database.
+     */
+    protected DatabaseLease acquireLease() {
+        Thread currentThread = Thread.currentThread();
+        if (!leasingEnabled || executionPhase == INITIALIZING || mainThread == null || currentThread == mainThread) {
+            return null;
+        }
+
+        DatabaseLease lease = leases.get(currentThread);
+        if (lease == null) {
+            releaseAbandonedLeases();
+            lease = leases.computeIfAbsent(currentThread, DatabaseLease::new);
+            logger.trace("Database lease has been acquired - context={}, thread={}", beanName, currentThread);
+        }
+        return lease;
+    }
+
+    private void warnIfUnleasedThread() {
+        Thread currentThread = Thread.currentThread();
+        if (leasingEnabled && executionPhase != INITIALIZING && currentThread != mainThread
+                && !leases.isEmpty() && unleasedThreads.add(currentThread)) {
+            logger.warn("Thread {} does not hold any database lease, so it uses the shared database instead of the database leased by a test. " +
+                    "Work handed over by a test to other threads does not see the data of the test - context={}", currentThread, beanName);
+        }
+    }
+
+    private void releaseAbandonedLeases() {
+        leases.values().removeIf(lease -> {
+            if (lease.owner.isAlive()) {
+                return false;
+            }
+            lease.close();
+            return true;
+        });
+    }
+
+    private void reportDatabase(EmbeddedDatabase database, TestExecutionStartedEvent event) {
+        String databaseBeanName = beanName.substring(0, beanName.length() - "Context".length());
+        EmbeddedDatabaseReporter.reportDataSource(databaseBeanName, database, event.getTestMethod());
+    }
+
     private synchronized void stopRecording() {
         if (databaseState == RECORDING) {
             logger.trace("Stopping database recording - context={}", beanName);
@@ -245,39 +463,97 @@ public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, B
     }
 
     private synchronized void refreshDatabase() {
+        refreshDatabase(executionPhase == INITIALIZING);
+    }
+
+    private synchronized void refreshDatabase(boolean async) {
         Stopwatch stopwatch = Stopwatch.createStarted();
         logger.trace("Refreshing database context - context={}", beanName);
+        publishedDatabase = null;
+        trackedDatabase = null;
+        releaseRollbackDatabase();
+
+        List<DatabasePreparer> preparers = ImmutableList.<DatabasePreparer>builder()
+                .addAll(corePreparers)
+                .addAll(testPreparers)
+                .build();
+
+        if (database != null && preparers.equals(databasePreparers) && IncrementalResetPreparer.restore(awaitDatabase())) {
+            logger.trace("Database context has been incrementally refreshed in {} - context={}", stopwatch, beanName);
+            databaseState = FRESH;
+            return;
+        }
 
         if (database != null) {
             logger.trace("Closing previous database - context={}", beanName);
-            awaitDatabase().close();
+            closeDatabase(database);
         }
 
         logger.trace("Creating a new database - context={}, corePreparers={}, testPreparers={}", beanName, corePreparers, testPreparers);
 
-        List<DatabasePreparer> preparers = ImmutableList.<DatabasePreparer>builder()
-                .addAll(corePreparers)
-                .addAll(testPreparers)
-                .build();
-
+        CompositeDatabasePreparer compositePreparer;
         if (executionPhase == INITIALIZING) {
-            database = bootstrapExecutor.submit(() -> {
-                EmbeddedDatabase database = databaseProvider.createDatabase(new CompositeDatabasePreparer(preparers));
+            databasePreparers = null;
+            compositePreparer = new CompositeDatabasePreparer(preparers);
+        } else {
+            databasePreparers = incrementalResetEnabled ? preparers : null;
+            compositePreparer = new CompositeDatabasePreparer(withIncrementalReset(preparers));
+        }
+
+        if (async) {
+            // the context startup is blocked by the database, whereas a database requested in advance is only speculative
+            int priority = executionPhase == INITIALIZING ? HIGHEST_PRECEDENCE : LOWEST_PRECEDENCE;
+            database = submitBootstrapTask(() -> {
+                EmbeddedDatabase database = databaseProvider.createDatabase(compositePreparer);
                 logger.trace("Database context has been successfully refreshed in {} - context={}", stopwatch, beanName);
                 return database;
-            });
+            }, priority);
         } else {
-            database = databaseFuture(databaseProvider.createDatabase(new CompositeDatabasePreparer(preparers)));
+            database = databaseFuture(databaseProvider.createDatabase(compositePreparer));
             logger.trace("Database context has been successfully refreshed in {} - context={}", stopwatch, beanName);
         }
 
         databaseState = FRESH;
     }
 
+    @SuppressWarnings("unchecked")
+    private void closeDatabase(Future<EmbeddedDatabase> database) {
+        if (database instanceof ListenableFuture && !database.isDone()) {
+            // a database that is still being created must not block the reaper thread, it is closed once it is completed
+            ((ListenableFuture<EmbeddedDatabase>) database).addCallback(
+                    completed -> closeDatabase(databaseFuture(completed)),
+                    t -> logger.trace("Previous database has not been created, nothing to close - context={}", beanName, t));
+            return;
+        }
+        reaper.drop(beanName, connection -> Futures.getUnchecked(database).close());
+    }
+
+    private List<DatabasePreparer> withIncrementalReset(List<DatabasePreparer> preparers) {
+        if (!incrementalResetEnabled) {
+            return preparers;
+        }
+        // the tracking must be installed after all other preparers so that only the changes made by tests are tracked
+        return ImmutableList.<DatabasePreparer>builder()
+                .addAll(preparers)
+                .add(IncrementalResetPreparer.INSTANCE)
+                .build();
+    }
+
     private synchronized void resetDatabase() {
+        publishedDatabase = null;
+        trackedDatabase = null;
+        releaseRollbackDatabase();
         databaseState = RESET;
     }
 
+    private synchronized void releaseRollbackDatabase() {
+        publishedDatabase = null;
+        if (rollbackDatabase != null) {
+            rollbackDatabase.release();
+            rollbackDatabase = null;
+        }
+    }
+
     private EmbeddedDatabase awaitDatabase() {
         return Futures.getUnchecked(database);
     }
@@ -288,25 +564,173 @@ public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, B
         return future;
     }
 
+    private Future<EmbeddedDatabase> submitBootstrapTask(Callable<EmbeddedDatabase> task, int priority) {
+        if (bootstrapExecutor instanceof PriorityThreadPoolTaskExecutor) {
+            return ((PriorityThreadPoolTaskExecutor) bootstrapExecutor).submitListenable(task, priority);
+        }
+        return bootstrapExecutor.submit(task);
+    }
+
     private AsyncTaskExecutor determineBootstrapExecutor(BeanFactory beanFactory) {
         Executor executor;
 
         try {
-            executor = beanFactory.getBean(TaskExecutor.class);
-        } catch (NoSuchBeanDefinitionException ex1) {
-            try {
-                executor = beanFactory.getBean("applicationTaskExecutor", Executor.class);
-            } catch (NoSuchBeanDefinitionException ex2) {
+            executor = beanFactory.getBean(BOOTSTRAP_EXECUTOR_BEAN_NAME, Executor.class);
+        } catch (NoSuchBeanDefinitionException ex) {
+            executor = defaultBootstrapExecutor;
+        }
+
+        return (executor instanceof AsyncTaskExecutor ?
+                (AsyncTaskExecutor) executor : new TaskExecutorAdapter(executor));
+    }
+
+    /**
+     * A database exclusively owned by a single test thread when the leasing mode is enabled.
+     * Each lease follows the same refresh rules as the shared database, but it is independent of the other threads.
+     */
+    protected class DatabaseLease {
+
+        protected final Thread owner;
+        protected final List<DatabasePreparer> testPreparers = new LinkedList<>();
+
+        protected DatabaseState databaseState = RESET;
+        protected EmbeddedDatabase database;
+        protected List<DatabasePreparer> databasePreparers;
+        protected ChangeTrackingDataSource trackedDatabase;
+        protected RollbackDataSource rollbackDatabase;
+
+        protected DatabaseLease(Thread owner) {
+            this.owner = owner;
+        }
+
+        protected synchronized List<DatabasePreparer> getTestPreparers() {
+            return ImmutableList.copyOf(testPreparers);
+        }
+
+        protected synchronized EmbeddedDatabase getDatabase() {
+            EmbeddedDatabase database = awaitDatabase();
+            if (databaseState == FRESH && rollbackEnabled && testPreparers.isEmpty()) {
+                if (rollbackDatabase == null) {
+                    rollbackDatabase = RollbackDataSource.wrap(database);
+                }
+                databaseState = DIRTY;
+            } else if (databaseState == FRESH && changeTrackingEnabled) {
+                trackedDatabase = ChangeTrackingDataSource.wrap(database);
+                databaseState = TRACKED;
+            } else if (databaseState == FRESH) {
+                databaseState = DIRTY;
+            }
+            if (rollbackDatabase != null) {
+                return rollbackDatabase;
+            }
+            return databaseState == TRACKED ? trackedDatabase : database;
+        }
+
+        protected synchronized EmbeddedDatabase awaitDatabase() {
+            if (databaseState == RESET) {
+                refreshDatabase();
+            }
+            return database;
+        }
+
+        protected synchronized ContextState getState() {
+            if (databaseState == DIRTY || (databaseState == TRACKED && trackedDatabase.hasChanges())) {
+                return ContextState.DIRTY;
+            } else if (!testPreparers.isEmpty()) {
+                return ContextState.AHEAD;
+            } else {
+                return ContextState.FRESH;
+            }
+        }
+
+        protected synchronized void reset() {
+            if (getState() != ContextState.FRESH) {
+                testPreparers.clear();
+                trackedDatabase = null;
+
+                if (rollbackDatabase != null && rollbackDatabase.rollback()) {
+                    logger.trace("Leased database changes have been rolled back - context={}, thread={}", beanName, owner);
+                    databaseState = FRESH;
+                } else {
+                    releaseRollbackDatabase();
+                    databaseState = RESET;
+                }
+            }
+        }
+
+        protected synchronized void disableRollback() {
+            if (rollbackDatabase != null) {
+                boolean rolledBack = rollbackDatabase.rollback();
+                releaseRollbackDatabase();
+                if (rolledBack && databaseState == DIRTY) {
+                    databaseState = FRESH;
+                }
+            }
+        }
+
+        protected synchronized void apply(DatabasePreparer preparer) {
+            if (getState() != ContextState.DIRTY) {
+                testPreparers.add(preparer);
+                trackedDatabase = null;
+                releaseRollbackDatabase();
+                databaseState = RESET;
+            } else {
                 try {
-                    executor = beanFactory.getBean(DEFAULT_TASK_EXECUTOR_BEAN_NAME, Executor.class);
-                } catch (NoSuchBeanDefinitionException ex3) {
-                    executor = new SimpleAsyncTaskExecutor();
+                    preparer.prepare(rollbackDatabase != null ? rollbackDatabase : database);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Unknown error when applying the preparer", e);
                 }
             }
         }
 
-        return (executor instanceof AsyncTaskExecutor ?
-                (AsyncTaskExecutor) executor : new TaskExecutorAdapter(executor));
+        protected synchronized void close() {
+            releaseRollbackDatabase();
+            if (database != null) {
+                try {
+                    database.close();
+                } catch (Throwable t) {
+                    logger.warn("Unexpected error when closing the leased database - context={}, thread={}", beanName, owner, t);
+                }
+                database = null;
+                databasePreparers = null;
+                trackedDatabase = null;
+                databaseState = RESET;
+            }
+        }
+
+        private void releaseRollbackDatabase() {
+            if (rollbackDatabase != null) {
+                rollbackDatabase.release();
+                rollbackDatabase = null;
+            }
+        }
+
+        private void refreshDatabase() {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            releaseRollbackDatabase();
+
+            List<DatabasePreparer> preparers = ImmutableList.<DatabasePreparer>builder()
+                    .addAll(getCorePreparers())
+                    .addAll(testPreparers)
+                    .build();
+
+            if (database != null && preparers.equals(databasePreparers) && IncrementalResetPreparer.restore(database)) {
+                logger.trace("Leased database has been incrementally refreshed in {} - context={}, thread={}", stopwatch, beanName, owner);
+                databaseState = FRESH;
+                return;
+            }
+
+            if (database != null) {
+                logger.trace("Closing previous leased database - context={}, thread={}", beanName, owner);
+                closeDatabase(databaseFuture(database));
+            }
+
+            databasePreparers = incrementalResetEnabled ? preparers : null;
+            database = databaseProvider.createDatabase(new CompositeDatabasePreparer(withIncrementalReset(preparers)));
+            databaseState = FRESH;
+
+            logger.trace("Leased database has been successfully refreshed in {} - context={}, thread={}", stopwatch, beanName, owner);
+        }
     }
 
     protected enum ExecutionPhase {
@@ -321,6 +745,7 @@ public class DefaultDatabaseContext implements DatabaseContext, BeanNameAware, B
 
         FRESH,
         DIRTY, // TODO: improve the detection of non-tracked changes
+        TRACKED,
         RECORDING,
         RESET
 
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.context;
+
+import com.google.common.base.Stopwatch;
+import io.zonky.test.db.preparer.DatabasePreparer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Database preparer that installs a table-level change tracking into a PostgreSQL database,
+ * which allows to restore the database to its prepared state by restoring only the modified tables.
+ * <p>
+ * Each table is copied into a baseline table on its first modification. The restore operation
+ * then replaces the content of the modified tables by their baselines and resets all sequences.
+ * Partitioned and inherited tables are tracked as a whole tree, but only the tables holding the rows are restored.
+ * Any DDL change is detected by event triggers and causes the restore to fail,
+ * so that the caller can fall back to creating a new database.
+ * <p>
+ * The preparer must always be applied as the last one. It does nothing on other databases than PostgreSQL 10 or later.
+ */
+class IncrementalResetPreparer implements DatabasePreparer {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalResetPreparer.class);
+
+    static final IncrementalResetPreparer INSTANCE = new IncrementalResetPreparer();
+
+    private static final String SCHEMA_NAME = "zonky_tracking";
+    private static final int MIN_SERVER_VERSION = 100000;
+    private static final int GENERATED_COLUMNS_SERVER_VERSION = 120000;
+
+    private IncrementalResetPreparer() {
+    }
+
+    @Override
+    public long estimatedDuration() {
+        return 10;
+    }
+
+    @Override
+    public void prepare(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            int serverVersion = getServerVersion(connection);
+            if (serverVersion < MIN_SERVER_VERSION) {
+                logger.debug("Incremental reset is not supported by this database, it is only supported by PostgreSQL 10 or later");
+                return;
+            }
+
+            statement.execute("create schema " + SCHEMA_NAME);
+            statement.execute("create table " + SCHEMA_NAME + ".modified_tables (table_oid oid primary key)");
+            statement.execute("create table " + SCHEMA_NAME + ".baseline_tables (table_oid oid primary key, baseline_name text not null)");
+            statement.execute("create table " + SCHEMA_NAME + ".sequences (sequence_oid oid primary key, last_value bigint not null, is_called boolean not null)");
+
+            statement.execute("insert into " + SCHEMA_NAME + ".sequences " +
+                    "select format('%I.%I', schemaname, sequencename)::regclass::oid, coalesce(last_value, start_value), last_value is not null " +
+                    "from pg_sequences where schemaname not in ('pg_catalog', 'information_schema')");
+
+            // statement triggers fire only on the table named in the statement, but the statement can also modify its inheritance children
+            // or move rows between partitions, so the whole partition tree is captured and only the plain tables get baselines
+            statement.execute("create function " + SCHEMA_NAME + ".capture_table() returns trigger language plpgsql as $$\n" +
+                    "declare\n" +
+                    "  root_oid oid := tg_relid;\n" +
+                    "  r record;\n" +
+                    "begin\n" +
+                    "  if not exists (select 1 from " + SCHEMA_NAME + ".modified_tables where table_oid = tg_relid) then\n" +
+                    "    while exists (select 1 from pg_class where oid = root_oid and relispartition) loop\n" +
+                    "      select inhparent into root_oid from pg_inherits where inhrelid = root_oid;\n" +
+                    "    end loop;\n" +
+                    "    perform pg_advisory_xact_lock(root_oid::bigint);\n" +
+                    "    for r in with recursive tree(table_oid) as (\n" +
+                    "        select root_oid union select i.inhrelid from pg_inherits i join tree t on i.inhparent = t.table_oid)\n" +
+                    "      select t.table_oid, c.relkind from tree t join pg_class c on c.oid = t.table_oid loop\n" +
+                    "      if r.relkind = 'r' and not exists (select 1 from " + SCHEMA_NAME + ".baseline_tables where table_oid = r.table_oid) then\n" +
+                    "        execute format('create table " + SCHEMA_NAME + ".%I as select * from only %s', 'baseline_' || r.table_oid, r.table_oid::regclass);\n" +
+                    "        insert into " + SCHEMA_NAME + ".baseline_tables values (r.table_oid, 'baseline_' || r.table_oid);\n" +
+                    "      end if;\n" +
+                    "      insert into " + SCHEMA_NAME + ".modified_tables values (r.table_oid) on conflict do nothing;\n" +
+                    "    end loop;\n" +
+                    "  end if;\n" +
+                    "  return null;\n" +
+                    "end $$");
+
+            statement.execute("create function " + SCHEMA_NAME + ".capture_ddl() returns event_trigger language plpgsql as $$\n" +
+                    "begin\n" +
+                    "  if exists (select 1 from pg_event_trigger_ddl_commands() where schema_name is distinct from '" + SCHEMA_NAME + "') then\n" +
+                    "    insert into " + SCHEMA_NAME + ".modified_tables values (0) on conflict do nothing;\n" +
+                    "  end if;\n" +
+                    "end $$");
+
+            statement.execute("create function " + SCHEMA_NAME + ".capture_drop() returns event_trigger language plpgsql as $$\n" +
+                    "begin\n" +
+                    "  if exists (select 1 from pg_event_trigger_dropped_objects() where schema_name is distinct from '" + SCHEMA_NAME + "') then\n" +
+                    "    insert into " + SCHEMA_NAME + ".modified_tables values (0) on conflict do nothing;\n" +
+                    "  end if;\n" +
+                    "end $$");
+
+            statement.execute("create function " + SCHEMA_NAME + ".restore() returns boolean language plpgsql as $$\n" +
+                    "declare\n" +
+                    "  r record;\n" +
+                    "  columns text;\n" +
+                    "begin\n" +
+                    "  if exists (select 1 from " + SCHEMA_NAME + ".modified_tables where table_oid = 0) then\n" +
+                    "    return false;\n" +
+                    "  end if;\n" +
+                    "  perform set_config('session_replication_role', 'replica', true);\n" +
+                    "  for r in select b.table_oid, b.baseline_name from " + SCHEMA_NAME + ".modified_tables m join " + SCHEMA_NAME + ".baseline_tables b on b.table_oid = m.table_oid loop\n" +
+                    "    select string_agg(quote_ident(attname), ', ' order by attnum) into columns from pg_attribute\n" +
+                    "      where attrelid = r.table_oid and attnum > 0 and not attisdropped" +
+                    (serverVersion >= GENERATED_COLUMNS_SERVER_VERSION ? " and attgenerated = ''" : "") + ";\n" +
+                    "    execute format('delete from only %s', r.table_oid::regclass);\n" +
+                    "    if columns is not null then\n" +
+                    "      execute format('insert into %s (%s) overriding system value select %s from " + SCHEMA_NAME + ".%I', r.table_oid::regclass, columns, columns, r.baseline_name);\n" +
+                    "    end if;\n" +
+                    "  end loop;\n" +
+                    "  delete from " + SCHEMA_NAME + ".modified_tables;\n" +
+                    "  perform setval(s.sequence_oid::regclass, s.last_value, s.is_called) from " + SCHEMA_NAME + ".sequences s;\n" +
+                    "  return true;\n" +
+                    "end $$");
+
+            statement.execute("do $$\n" +
+                    "declare\n" +
+                    "  r record;\n" +
+                    "begin\n" +
+                    "  for r in select c.oid, c.oid::regclass as table_name from pg_class c join pg_namespace n on n.oid = c.relnamespace\n" +
+                    "    where c.relkind in ('r', 'p') and c.relpersistence <> 't'\n" +
+                    "      and n.nspname not in ('pg_catalog', 'information_schema', '" + SCHEMA_NAME + "') and n.nspname not like 'pg_toast%' loop\n" +
+                    // newer servers clone the triggers of partitioned tables to their partitions
+                    "    if not exists (select 1 from pg_trigger where tgrelid = r.oid and tgname = 'zonky_tracking_capture') then\n" +
+                    "      execute format('create trigger zonky_tracking_capture before insert or update or delete or truncate on %s " +
+                    "for each statement execute procedure " + SCHEMA_NAME + ".capture_table()', r.table_name);\n" +
+                    "    end if;\n" +
+                    "  end loop;\n" +
+                    "end $$");
+
+            statement.execute("create event trigger zonky_tracking_ddl on ddl_command_end execute procedure " + SCHEMA_NAME + ".capture_ddl()");
+            statement.execute("create event trigger zonky_tracking_drop on sql_drop execute procedure " + SCHEMA_NAME + ".capture_drop()");
+        }
+    }
+
+    /**
+     * Restores the modified tables and sequences to the state in which they were when the preparer was applied.
+     *
+     * @return {@code true} if the database has been restored, {@code false} if the database must be recreated
+     */
+    static boolean restore(DataSource dataSource) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            if (getServerVersion(connection) < MIN_SERVER_VERSION) {
+                return false;
+            }
+            try (ResultSet resultSet = statement.executeQuery("select " + SCHEMA_NAME + ".restore()")) {
+                boolean restored = resultSet.next() && resultSet.getBoolean(1);
+                logger.trace("Incremental reset has been {} in {}", restored ? "completed" : "rejected due to schema changes", stopwatch);
+                return restored;
+            }
+        } catch (SQLException e) {
+            logger.debug("Incremental reset failed, the database will be recreated", e);
+            return false;
+        }
+    }
+
+    private static int getServerVersion(Connection connection) throws SQLException {
+        if (!"PostgreSQL".equals(connection.getMetaData().getDatabaseProductName())) {
+            return 0;
+        }
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select current_setting('server_version_num')::int")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IncrementalResetPreparer";
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.context;
+
+import io.zonky.test.db.provider.EmbeddedDatabase;
+import org.springframework.aop.framework.ProxyFactory;
+
+/**
+ * Embedded database wrapper that pins a single connection with an open transaction
+ * so that all changes made through the wrapper can be rolled back cheaply.
+ * <p>
+ * Transaction control methods invoked by the application are emulated using savepoints.
+ * An explicit commit or a request for a concurrent connection permanently switches
+ * the wrapper to a pass-through mode in which the changes can no longer be rolled back.
+ */
+public interface RollbackDataSource extends EmbeddedDatabase {
+
+    /**
+     * Rolls back all changes made through this data source.
+     *
+     * @return {@code true} if the changes were rolled back, {@code false} if the rollback is not possible
+     */
+    boolean rollback();
+
+    /**
+     * Rolls back the pending changes and closes the pinned connection.
+     */
+    void release();
+
+    static RollbackDataSource wrap(EmbeddedDatabase database) {
+        ProxyFactory proxyFactory = new ProxyFactory(database);
+        proxyFactory.addAdvice(new RollbackMethodInterceptor());
+        proxyFactory.addInterface(RollbackDataSource.class);
+        return (RollbackDataSource) proxyFactory.getProxy();
+    }
+
+}
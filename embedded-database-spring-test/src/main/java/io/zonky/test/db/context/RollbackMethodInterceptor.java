@@ -0,0 +1,257 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.context;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.postgresql.PGConnection;
+import org.postgresql.jdbc.AutoSave;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+class RollbackMethodInterceptor implements MethodInterceptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollbackMethodInterceptor.class);
+
+    private Connection connection;
+    private Savepoint initialSavepoint;
+    private ConnectionHandle handle;
+    private boolean passThrough;
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Method method = invocation.getMethod();
+        String methodName = method.getName();
+
+        if (method.getDeclaringClass() == RollbackDataSource.class) {
+            if (methodName.equals("rollback")) {
+                return rollback();
+            } else if (methodName.equals("release")) {
+                release();
+                return null;
+            }
+        }
+
+        if (methodName.equals("getConnection")) {
+            return getConnection(invocation);
+        }
+
+        if (methodName.equals("close") && invocation.getArguments().length == 0) {
+            release();
+        }
+
+        return invocation.proceed();
+    }
+
+    private synchronized Object getConnection(MethodInvocation invocation) throws Throwable {
+        if (passThrough) {
+            return invocation.proceed();
+        }
+
+        if (invocation.getArguments().length > 0 || handle != null) {
+            switchToPassThrough("concurrent connection requested");
+            return invocation.proceed();
+        }
+
+        if (connection == null) {
+            Connection connection = (Connection) invocation.proceed();
+            try {
+                connection.setAutoCommit(false);
+                enableAutosave(connection);
+                this.initialSavepoint = connection.setSavepoint();
+                this.connection = connection;
+            } catch (SQLException e) {
+                logger.warn("Unable to pin connection, falling back to database refresh", e);
+                passThrough = true;
+                return connection;
+            }
+        }
+
+        handle = new ConnectionHandle();
+        ProxyFactory proxyFactory = new ProxyFactory(connection);
+        proxyFactory.addAdvice(handle);
+        proxyFactory.addInterface(Connection.class);
+        return proxyFactory.getProxy();
+    }
+
+    private synchronized boolean rollback() {
+        if (passThrough) {
+            return false;
+        }
+        if (connection == null) {
+            return true;
+        }
+
+        invalidateHandle();
+        try {
+            connection.rollback(initialSavepoint);
+            return true;
+        } catch (SQLException e) {
+            logger.debug("Unable to roll back pinned connection, falling back to database refresh", e);
+            release();
+            passThrough = true;
+            return false;
+        }
+    }
+
+    private synchronized void release() {
+        invalidateHandle();
+        if (connection != null) {
+            try {
+                if (!passThrough) {
+                    connection.rollback();
+                }
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug("Unexpected error when releasing pinned connection", e);
+            }
+            connection = null;
+            initialSavepoint = null;
+        }
+    }
+
+    private synchronized void switchToPassThrough(String reason) throws SQLException {
+        if (passThrough) {
+            return;
+        }
+
+        logger.trace("Switching to pass-through mode, changes can not be rolled back - reason={}", reason);
+        passThrough = true;
+
+        if (connection != null) {
+            if (handle != null) {
+                // the pinned connection is still in use, it will be closed together with the handle
+                connection.commit();
+                connection.setAutoCommit(handle.autoCommit);
+            } else {
+                connection.commit();
+                connection.close();
+                connection = null;
+            }
+        }
+    }
+
+    private void invalidateHandle() {
+        if (handle != null) {
+            handle.closed = true;
+            handle = null;
+        }
+    }
+
+    private static void enableAutosave(Connection connection) throws SQLException {
+        // a failed statement must not abort the whole pinned transaction
+        if (ClassUtils.isPresent("org.postgresql.jdbc.AutoSave", null)) {
+            PostgresSupport.enableAutosave(connection);
+        }
+    }
+
+    private static class PostgresSupport {
+
+        private static void enableAutosave(Connection connection) throws SQLException {
+            if (connection.isWrapperFor(PGConnection.class)) {
+                connection.unwrap(PGConnection.class).setAutosave(AutoSave.ALWAYS);
+            }
+        }
+    }
+
+    private class ConnectionHandle implements MethodInterceptor {
+
+        private boolean autoCommit = true;
+        private boolean readOnly = false;
+        private Integer transactionIsolation;
+        private Savepoint transactionSavepoint;
+        private boolean closed;
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            synchronized (RollbackMethodInterceptor.this) {
+                String methodName = invocation.getMethod().getName();
+                Object[] arguments = invocation.getArguments();
+
+                if (closed) {
+                    if (methodName.equals("close")) {
+                        return null;
+                    } else if (methodName.equals("isClosed")) {
+                        return true;
+                    }
+                    throw new SQLException("Connection has been closed");
+                }
+
+                if (passThrough) {
+                    // the pinned connection has been handed over to this handle
+                    if (methodName.equals("close")) {
+                        closed = true;
+                        handle = null;
+                        connection = null;
+                        initialSavepoint = null;
+                    }
+                    return invocation.proceed();
+                }
+
+                switch (methodName) {
+                    case "close":
+                        closed = true;
+                        handle = null;
+                        return null;
+                    case "isClosed":
+                        return false;
+                    case "getAutoCommit":
+                        return autoCommit;
+                    case "setAutoCommit":
+                        boolean newAutoCommit = (Boolean) arguments[0];
+                        if (autoCommit && !newAutoCommit) {
+                            transactionSavepoint = connection.setSavepoint();
+                        } else if (!autoCommit && newAutoCommit) {
+                            transactionSavepoint = null;
+                        }
+                        autoCommit = newAutoCommit;
+                        return null;
+                    case "commit":
+                        switchToPassThrough("explicit commit");
+                        return null;
+                    case "rollback":
+                        if (arguments.length == 0) {
+                            if (transactionSavepoint != null) {
+                                connection.rollback(transactionSavepoint);
+                            }
+                            return null;
+                        }
+                        return invocation.proceed();
+                    case "isReadOnly":
+                        return readOnly;
+                    case "setReadOnly":
+                        readOnly = (Boolean) arguments[0];
+                        return null;
+                    case "getTransactionIsolation":
+                        return transactionIsolation != null ? transactionIsolation : invocation.proceed();
+                    case "setTransactionIsolation":
+                        transactionIsolation = (Integer) arguments[0];
+                        return null;
+                    default:
+                        return invocation.proceed();
+                }
+            }
+        }
+    }
+}
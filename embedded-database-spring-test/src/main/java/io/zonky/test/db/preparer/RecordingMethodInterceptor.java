@@ -21,41 +21,70 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.AtomicLongMap;
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.aop.framework.ProxyFactory;
-import org.springframework.util.FileCopyUtils;
+import org.springframework.core.ConfigurableObjectInputStream;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.StringUtils;
 
 import javax.sql.DataSource;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.CharArrayReader;
 import java.io.CharArrayWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.sql.Wrapper;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
@@ -63,10 +92,15 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkState;
+import static io.zonky.test.db.preparer.SpilledContent.SPILL_THRESHOLD;
 import static io.zonky.test.db.util.ReflectionUtils.invokeMethod;
+import static java.nio.charset.StandardCharsets.UTF_16BE;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.springframework.beans.BeanUtils.isSimpleValueType;
 
 public class RecordingMethodInterceptor implements MethodInterceptor {
@@ -80,9 +114,16 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
             new MethodPredicate(PreparedStatement.class, "getMetaData", "getParameterMetaData"),
             new MethodPredicate(CallableStatement.class, "getString", "getBoolean", "getByte", "getShort", "getInt", "getLong", "getFloat", "getDouble", "getBigDecimal", "getBytes", "getDate", "getTime", "getTimestamp", "getObject", "getRef", "getBlob", "getClob", "getArray", "getURL", "getRowId", "getNClob", "getSQLXML", "getNString", "getNCharacterStream", "getCharacterStream"),
             new MethodPredicate(ResultSet.class, "wasNull", "getString", "getBoolean", "getByte", "getShort", "getInt", "getLong", "getFloat", "getDouble", "getBigDecimal", "getBytes", "getDate", "getTime", "getTimestamp", "getAsciiStream", "getUnicodeStream", "getBinaryStream", "getWarnings", "clearWarnings", "getCursorName", "getMetaData", "getObject", "findColumn", "getCharacterStream", "isBeforeFirst", "isAfterLast", "isFirst", "isLast", "getRow", "getFetchDirection", "getFetchSize", "getType", "getConcurrency", "rowUpdated", "rowInserted", "rowDeleted", "getRef", "getBlob", "getClob", "getArray", "getURL", "getRowId", "getHoldability", "isClosed", "getNClob", "getSQLXML", "getNString", "getNCharacterStream"));
-            // TODO: consider excluding executeQuery methods (select statements)
+
+    private static final Set<Class<?>> IMMUTABLE_TYPES = ImmutableSet.of(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+            BigDecimal.class, BigInteger.class);
 
     private static final String ROOT_REFERENCE = "dataSource";
+    private static final Object[] EMPTY_ARGUMENTS = new Object[0];
+
+    private static final ConcurrentMap<Method, Boolean> excludedMethods = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, Optional<Constructor<?>>> proxyConstructors = new ConcurrentHashMap<>();
 
     private final String thisId;
     private final RecordingContext context;
@@ -98,13 +139,22 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
     }
 
     private Object[] captureArguments(Object[] arguments) throws IOException {
+        if (arguments.length == 0) {
+            return EMPTY_ARGUMENTS;
+        }
+
         Object[] captured = new Object[arguments.length];
 
         for (int i = 0; i < arguments.length; i++) {
+            RecordingInvocationHandler handler;
             if (arguments[i] == null) {
-                captured[i] = new NullArgumentProvider();
+                captured[i] = NullArgumentProvider.INSTANCE;
+            } else if (IMMUTABLE_TYPES.contains(arguments[i].getClass())) {
+                captured[i] = arguments[i];
             } else if (arguments[i] instanceof OutputStream) {
                 throw new UnsupportedOperationException("Output streams can not be captured");
+            } else if ((handler = RecordingInvocationHandler.forProxy(arguments[i])) != null) {
+                captured[i] = new ArgumentReference(handler.thisId);
             } else if (context.containsArgumentMapping(arguments[i])) {
                 captured[i] = new ArgumentReference(context.getArgumentId(arguments[i]));
             } else if (arguments[i] instanceof InputStream) {
@@ -160,36 +210,53 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
     @Override
     public Object invoke(MethodInvocation invocation) throws Throwable {
         Method method = invocation.getMethod();
-        String methodName = method.getName();
-        Class<?> returnType = method.getReturnType();
         Object[] arguments = captureArguments(invocation.getArguments());
 
-        if (method.getDeclaringClass() == RecordingDataSource.class && methodName.equals("getPreparer")) {
+        if (method.getDeclaringClass() == RecordingDataSource.class && method.getName().equals("getPreparer")) {
             return new ReplayableDatabasePreparerImpl(context.recordData);
         }
 
         Object result = invocation.proceed();
+        return recordInvocation(thisId, method, targetClass(invocation), arguments, result);
+    }
 
+    private Object recordInvocation(String thisId, Method method, Class<?> targetClass, Object[] arguments, Object result) {
         if (isExcludedMethod(method)) {
             return result;
         }
 
+        Class<?> returnType = method.getReturnType();
         if (result != null && !isSimpleValueType(returnType) && !returnType.isArray()
                 && (returnType.isInterface() || !Modifier.isFinal(result.getClass().getModifiers()))) {
 
             String returnId = context.generateIdentifier(returnType);
-            context.addRecord(new Record(thisId, methodName, arguments, returnId));
+            context.addRecord(new Record(thisId, method, targetClass, arguments, returnId));
 
-            Object proxiedResult = createRecordingProxy(returnId, returnType, result);
-            context.registerArgumentMapping(returnId, proxiedResult);
-            return proxiedResult;
+            return createRecordingProxy(returnId, returnType, result);
         } else {
-            context.addRecord(new Record(thisId, methodName, arguments, null));
+            context.addRecord(new Record(thisId, method, targetClass, arguments, null));
             return result;
         }
     }
 
+    private static Class<?> targetClass(MethodInvocation invocation) {
+        Object target = invocation.getThis();
+        return target != null ? target.getClass() : invocation.getMethod().getDeclaringClass();
+    }
+
     private Object createRecordingProxy(String identifier, Class<?> returnType, Object result) {
+        if (returnType.isInterface()) {
+            Constructor<?> proxyConstructor = getProxyConstructor(result.getClass());
+            if (proxyConstructor != null) {
+                try {
+                    // recorded objects are identified directly by their invocation handlers, so no argument mapping is necessary
+                    return proxyConstructor.newInstance(new RecordingInvocationHandler(this, identifier, result));
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Unexpected error when creating a recording proxy", e);
+                }
+            }
+        }
+
         ProxyFactory proxyFactory = new ProxyFactory(result);
         proxyFactory.addAdvice(new RecordingMethodInterceptor(identifier, context));
 
@@ -199,16 +266,82 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
             proxyFactory.setProxyTargetClass(true);
         }
 
-        return proxyFactory.getProxy();
+        Object proxiedResult = proxyFactory.getProxy();
+        context.registerArgumentMapping(identifier, proxiedResult);
+        return proxiedResult;
+    }
+
+    private static Constructor<?> getProxyConstructor(Class<?> targetClass) {
+        return proxyConstructors.computeIfAbsent(targetClass, type -> {
+            Class<?>[] interfaces = ClassUtils.getAllInterfacesForClassAsSet(type, type.getClassLoader()).stream()
+                    .filter(i -> Modifier.isPublic(i.getModifiers()))
+                    .toArray(Class<?>[]::new);
+            try {
+                Class<?> proxyClass = Proxy.getProxyClass(type.getClassLoader(), interfaces);
+                return Optional.of(proxyClass.getConstructor(InvocationHandler.class));
+            } catch (IllegalArgumentException | NoSuchMethodException e) {
+                return Optional.empty();
+            }
+        }).orElse(null);
     }
 
     private static boolean isExcludedMethod(Method method) {
-        for (Predicate<Method> exclusionPredicate : EXCLUDED_METHODS) {
-            if (exclusionPredicate.test(method)) {
-                return true;
+        return excludedMethods.computeIfAbsent(method, m -> EXCLUDED_METHODS.stream().anyMatch(p -> p.test(m)));
+    }
+
+    /**
+     * Invocation handler of recording proxies created from cached proxy classes.
+     * All proxies of a single recording share the same interceptor, the handler holds only the state of the proxied object.
+     */
+    private static class RecordingInvocationHandler implements InvocationHandler {
+
+        private final RecordingMethodInterceptor interceptor;
+        private final String thisId;
+        private final Object target;
+
+        private RecordingInvocationHandler(RecordingMethodInterceptor interceptor, String thisId, Object target) {
+            this.interceptor = interceptor;
+            this.thisId = thisId;
+            this.target = target;
+        }
+
+        public static RecordingInvocationHandler forProxy(Object object) {
+            if (Proxy.isProxyClass(object.getClass())) {
+                InvocationHandler handler = Proxy.getInvocationHandler(object);
+                if (handler instanceof RecordingInvocationHandler) {
+                    return (RecordingInvocationHandler) handler;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object[] arguments = args != null ? args : EMPTY_ARGUMENTS;
+
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        RecordingInvocationHandler handler = arguments[0] != null ? forProxy(arguments[0]) : null;
+                        return proxy == arguments[0] || (handler != null && target.equals(handler.target));
+                    case "hashCode":
+                        return target.hashCode();
+                    default:
+                        return method.invoke(target, arguments);
+                }
+            }
+
+            Object[] capturedArguments = interceptor.captureArguments(arguments);
+
+            Object result;
+            try {
+                result = method.invoke(target, arguments);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
             }
+
+            return interceptor.recordInvocation(thisId, method, target.getClass(), capturedArguments, result);
         }
-        return false;
     }
 
     private static class MethodPredicate implements Predicate<Method> {
@@ -236,6 +369,8 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
 
     private static class RecordingContext {
 
+        private static final ConcurrentMap<Class<?>, String> typeNames = new ConcurrentHashMap<>();
+
         private final AtomicLongMap<String> sequences;
         private final BlockingQueue<Record> recordData;
         private final ConcurrentMap<Equivalence.Wrapper<Object>, String> argumentMapping;
@@ -247,7 +382,7 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
         }
 
         public String generateIdentifier(Class<?> type) {
-            String typeName = StringUtils.uncapitalize(type.getSimpleName());
+            String typeName = typeNames.computeIfAbsent(type, t -> StringUtils.uncapitalize(t.getSimpleName()));
             long paramIndex = sequences.incrementAndGet(typeName);
             return typeName + paramIndex;
         }
@@ -278,6 +413,16 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
         private static final Logger logger = LoggerFactory.getLogger(ReplayableDatabasePreparer.class);
 
         private final List<Record> recordData;
+        private final ReplayPlan replayPlan;
+
+        private volatile Optional<String> contentHash;
+
+        /**
+         * Reads a recording previously written by the {@link #writeTo(OutputStream)} method.
+         */
+        public static ReplayableDatabasePreparerImpl readFrom(InputStream input) throws IOException {
+            return new ReplayableDatabasePreparerImpl(RecordSerializer.read(input));
+        }
 
         private ReplayableDatabasePreparerImpl(Collection<Record> recordData) {
             List<Record> records = new LinkedList<>(recordData);
@@ -288,7 +433,8 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
                     .collect(Collectors.toList());
             removableRecords.forEach(method -> removeAllReferences(records, method));
 
-            this.recordData = ImmutableList.copyOf(records);
+            this.recordData = ImmutableList.copyOf(RecordCompactor.compact(records));
+            this.replayPlan = new ReplayPlan(this.recordData);
         }
 
         @Override
@@ -296,6 +442,28 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
             return !recordData.isEmpty();
         }
 
+        @Override
+        public String getContentHash() {
+            Optional<String> contentHash = this.contentHash;
+            if (contentHash == null) {
+                try {
+                    Hasher hasher = Hashing.sha256().newHasher();
+                    RecordSerializer.write(recordData, Funnels.asOutputStream(hasher));
+                    contentHash = Optional.of(hasher.hash().toString());
+                } catch (IOException e) {
+                    logger.trace("Recorded data can not be serialized, the content hash is not available", e);
+                    contentHash = Optional.empty();
+                }
+                this.contentHash = contentHash;
+            }
+            return contentHash.orElse(null);
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            RecordSerializer.write(recordData, output);
+        }
+
         @Override
         public long estimatedDuration() {
             long recordsCount = recordData.stream()
@@ -308,32 +476,11 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
         public void prepare(DataSource dataSource) {
             Stopwatch stopwatch = Stopwatch.createStarted();
 
-            Map<String, Object> context = new HashMap<>();
-            context.put(ROOT_REFERENCE, dataSource);
-
-            for (Record record : recordData) {
-                Object target = context.get(record.thisId);
-                Object[] arguments = record.arguments.stream().map(arg -> mapArgument(arg, context)).toArray();
-                Object result = invokeMethod(target, record.methodName, arguments);
-                if (record.resultId != null) {
-                    checkState(result != null, "The result does not match the recorded data");
-                    context.put(record.resultId, result);
-                }
-            }
+            replayPlan.replay(dataSource);
 
             logger.trace("Database has been successfully prepared in {}", stopwatch);
         }
 
-        private static Object mapArgument(Object argument, Map<String, Object> context) {
-            if (argument instanceof ArgumentReference) {
-                return context.get(((ArgumentReference) argument).getReferenceId());
-            } else if (argument instanceof ArgumentProvider) {
-                return ((ArgumentProvider) argument).getArgument();
-            } else {
-                return argument;
-            }
-        }
-
         private static boolean isGetConnectionMethod(Record record) {
             return record.thisId.equals(ROOT_REFERENCE) && record.methodName.equals("getConnection") && record.arguments.isEmpty();
         }
@@ -361,12 +508,18 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             ReplayableDatabasePreparerImpl that = (ReplayableDatabasePreparerImpl) o;
+            String contentHash = getContentHash();
+            String thatContentHash = that.getContentHash();
+            if (contentHash != null && thatContentHash != null) {
+                return contentHash.equals(thatContentHash);
+            }
             return Objects.equals(recordData, that.recordData);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(recordData);
+            String contentHash = getContentHash();
+            return contentHash != null ? contentHash.hashCode() : Objects.hash(recordData);
         }
 
         @Override
@@ -378,18 +531,735 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
         }
     }
 
+    /**
+     * Stable binary format of recorded data. Values of common JDBC types are written explicitly,
+     * other arguments are written using the standard java serialization.
+     * Methods are identified by their public interfaces so that the data do not depend on the recorded objects.
+     */
+    private static class RecordSerializer {
+
+        private static final int MAGIC = 0x5A524543;
+        private static final int VERSION = 2;
+
+        private static final byte NULL = 0;
+        private static final byte REFERENCE = 1;
+        private static final byte INPUT_STREAM = 2;
+        private static final byte READER = 3;
+        private static final byte STRING = 4;
+        private static final byte BOOLEAN = 5;
+        private static final byte BYTE = 6;
+        private static final byte SHORT = 7;
+        private static final byte INTEGER = 8;
+        private static final byte LONG = 9;
+        private static final byte FLOAT = 10;
+        private static final byte DOUBLE = 11;
+        private static final byte BYTES = 12;
+        private static final byte SERIALIZED = 13;
+
+        public static void write(List<Record> records, OutputStream stream) throws IOException {
+            DataOutputStream output = new DataOutputStream(stream);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(records.size());
+
+            for (Record record : records) {
+                writeString(output, record.thisId);
+                writeString(output, record.methodName);
+                writeString(output, record.resultId);
+                writeMethod(output, record.method != null ? ReplayPlan.findPublicMethod(record.method, record.targetClass) : null);
+
+                output.writeInt(record.arguments.size());
+                for (Object argument : record.arguments) {
+                    writeArgument(output, argument);
+                }
+            }
+
+            output.flush();
+        }
+
+        public static List<Record> read(InputStream stream) throws IOException {
+            DataInputStream input = new DataInputStream(stream);
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new StreamCorruptedException("Unsupported format of recorded data");
+            }
+
+            int recordCount = input.readInt();
+            List<Record> records = new ArrayList<>(recordCount);
+
+            for (int i = 0; i < recordCount; i++) {
+                String thisId = readString(input);
+                String methodName = readString(input);
+                String resultId = readString(input);
+                Method method = readMethod(input, methodName);
+
+                Object[] arguments = new Object[input.readInt()];
+                for (int j = 0; j < arguments.length; j++) {
+                    arguments[j] = readArgument(input);
+                }
+
+                records.add(new Record(thisId, methodName, method, arguments, resultId));
+            }
+
+            return records;
+        }
+
+        private static void writeMethod(DataOutputStream output, Method method) throws IOException {
+            writeString(output, method != null ? method.getDeclaringClass().getName() : null);
+            if (method != null) {
+                Class<?>[] parameterTypes = method.getParameterTypes();
+                output.writeInt(parameterTypes.length);
+                for (Class<?> parameterType : parameterTypes) {
+                    writeString(output, parameterType.getName());
+                }
+            }
+        }
+
+        private static Method readMethod(DataInputStream input, String methodName) throws IOException {
+            String className = readString(input);
+            if (className == null) {
+                return null;
+            }
+            String[] parameterTypeNames = new String[input.readInt()];
+            for (int i = 0; i < parameterTypeNames.length; i++) {
+                parameterTypeNames[i] = readString(input);
+            }
+
+            try {
+                ClassLoader classLoader = ClassUtils.getDefaultClassLoader();
+                Class<?>[] parameterTypes = new Class<?>[parameterTypeNames.length];
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    parameterTypes[i] = ClassUtils.forName(parameterTypeNames[i], classLoader);
+                }
+                return ClassUtils.forName(className, classLoader).getMethod(methodName, parameterTypes);
+            } catch (ClassNotFoundException | LinkageError | NoSuchMethodException e) {
+                // the method will be resolved by its name during the replay
+                return null;
+            }
+        }
+
+        private static void writeArgument(DataOutputStream output, Object argument) throws IOException {
+            if (argument instanceof NullArgumentProvider) {
+                output.writeByte(NULL);
+            } else if (argument instanceof ArgumentReference) {
+                output.writeByte(REFERENCE);
+                writeString(output, ((ArgumentReference) argument).getReferenceId());
+            } else if (argument instanceof InputStreamArgumentProvider) {
+                InputStreamArgumentProvider provider = (InputStreamArgumentProvider) argument;
+                output.writeByte(INPUT_STREAM);
+                if (provider.spilled != null) {
+                    output.writeInt(provider.spilled.size());
+                    provider.spilled.writeTo(output);
+                } else {
+                    writeBytes(output, provider.data);
+                }
+            } else if (argument instanceof ReaderArgumentProvider) {
+                ReaderArgumentProvider provider = (ReaderArgumentProvider) argument;
+                output.writeByte(READER);
+                if (provider.spilled != null) {
+                    output.writeInt(provider.spilled.size());
+                    provider.spilled.writeTo(output);
+                } else {
+                    writeBytes(output, new String(provider.data).getBytes(UTF_16BE));
+                }
+            } else if (argument instanceof String) {
+                output.writeByte(STRING);
+                writeString(output, (String) argument);
+            } else if (argument instanceof Boolean) {
+                output.writeByte(BOOLEAN);
+                output.writeBoolean((Boolean) argument);
+            } else if (argument instanceof Byte) {
+                output.writeByte(BYTE);
+                output.writeByte((Byte) argument);
+            } else if (argument instanceof Short) {
+                output.writeByte(SHORT);
+                output.writeShort((Short) argument);
+            } else if (argument instanceof Integer) {
+                output.writeByte(INTEGER);
+                output.writeInt((Integer) argument);
+            } else if (argument instanceof Long) {
+                output.writeByte(LONG);
+                output.writeLong((Long) argument);
+            } else if (argument instanceof Float) {
+                output.writeByte(FLOAT);
+                output.writeFloat((Float) argument);
+            } else if (argument instanceof Double) {
+                output.writeByte(DOUBLE);
+                output.writeDouble((Double) argument);
+            } else if (argument instanceof byte[]) {
+                output.writeByte(BYTES);
+                writeBytes(output, (byte[]) argument);
+            } else if (argument instanceof Serializable) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try (ObjectOutputStream objectOutput = new ObjectOutputStream(buffer)) {
+                    objectOutput.writeObject(argument);
+                }
+                output.writeByte(SERIALIZED);
+                writeBytes(output, buffer.toByteArray());
+            } else {
+                throw new NotSerializableException(argument.getClass().getName());
+            }
+        }
+
+        private static Object readArgument(DataInputStream input) throws IOException {
+            byte type = input.readByte();
+            switch (type) {
+                case NULL:
+                    return NullArgumentProvider.INSTANCE;
+                case REFERENCE:
+                    return new ArgumentReference(readString(input));
+                case INPUT_STREAM: {
+                    int length = input.readInt();
+                    if (length > SPILL_THRESHOLD) {
+                        return new InputStreamArgumentProvider(readSpilled(input, length));
+                    }
+                    return new InputStreamArgumentProvider(readFully(input, length));
+                }
+                case READER: {
+                    // character data are always written in the UTF-16BE encoding, the same as the spilled content
+                    int length = input.readInt();
+                    if (length > SPILL_THRESHOLD) {
+                        return new ReaderArgumentProvider(readSpilled(input, length));
+                    }
+                    return new ReaderArgumentProvider(new String(readFully(input, length), UTF_16BE).toCharArray());
+                }
+                case STRING:
+                    return readString(input);
+                case BOOLEAN:
+                    return input.readBoolean();
+                case BYTE:
+                    return input.readByte();
+                case SHORT:
+                    return input.readShort();
+                case INTEGER:
+                    return input.readInt();
+                case LONG:
+                    return input.readLong();
+                case FLOAT:
+                    return input.readFloat();
+                case DOUBLE:
+                    return input.readDouble();
+                case BYTES:
+                    return readBytes(input);
+                case SERIALIZED:
+                    try (ObjectInputStream objectInput = new ConfigurableObjectInputStream(
+                            new ByteArrayInputStream(readBytes(input)), ClassUtils.getDefaultClassLoader())) {
+                        return objectInput.readObject();
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException("Recorded argument can not be deserialized", e);
+                    }
+                default:
+                    throw new StreamCorruptedException("Unknown argument type: " + type);
+            }
+        }
+
+        private static void writeString(DataOutputStream output, String value) throws IOException {
+            if (value == null) {
+                output.writeInt(-1);
+            } else {
+                writeBytes(output, value.getBytes(UTF_8));
+            }
+        }
+
+        private static String readString(DataInputStream input) throws IOException {
+            byte[] bytes = readBytes(input);
+            return bytes != null ? new String(bytes, UTF_8) : null;
+        }
+
+        private static void writeBytes(DataOutputStream output, byte[] value) throws IOException {
+            output.writeInt(value.length);
+            output.write(value);
+        }
+
+        private static byte[] readBytes(DataInputStream input) throws IOException {
+            int length = input.readInt();
+            if (length < 0) {
+                return null;
+            }
+            return readFully(input, length);
+        }
+
+        private static byte[] readFully(DataInputStream input, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return bytes;
+        }
+
+        private static SpilledContent readSpilled(DataInputStream input, int length) throws IOException {
+            SpilledContent content = SpilledContent.spill(new byte[0], 0, ByteStreams.limit(input, length));
+            if (content.size() != length) {
+                throw new EOFException("Unexpected end of recorded data");
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Optimization pass over a finished recording. Queries whose results can not affect the database are removed
+     * and consecutive independent updates are merged into batches executed in a single transaction.
+     * The rewriting is conservative, any statement that is not known to be safe is replayed as it was recorded.
+     */
+    private static class RecordCompactor {
+
+        private static final int MIN_BATCH_SIZE = 3;
+
+        private static final Pattern COMMENTS_PATTERN = Pattern.compile("(?s)(/\\*.*?\\*/|--[^\\n]*)");
+        private static final Pattern QUERY_PATTERN = Pattern.compile("(?is)^[\\s(]*(select|show|values|table|explain)\\b.*");
+        private static final Pattern UNSAFE_QUERY_PATTERN = Pattern.compile("(?is).*\\b(into|update|share|lock|nextval|setval)\\b.*");
+        private static final Pattern FUNCTION_CALL_PATTERN = Pattern.compile("(?i)\\b([a-z_][\\w$]*)\\s*\\(");
+        private static final Pattern NON_BATCHABLE_PATTERN = Pattern.compile("(?is)^[\\s(]*(select|show|values|table|explain|with|call|exec|execute|do|copy|begin|start|commit|rollback|savepoint|release|set|reset|vacuum|analyze|cluster|reindex|listen|notify|use)\\b.*");
+        private static final Pattern NON_TRANSACTIONAL_PATTERN = Pattern.compile("(?is).*\\b(select|returning|concurrently|database|tablespace|system|type)\\b.*");
+
+        private static final Set<String> SAFE_FUNCTIONS = ImmutableSet.of(
+                "count", "min", "max", "sum", "avg", "coalesce", "lower", "upper", "cast",
+                "exists", "in", "any", "all", "and", "or", "not", "from", "join", "on", "as", "where", "values");
+        private static final Set<String> NAVIGATION_METHODS = ImmutableSet.of(
+                "next", "previous", "first", "last", "absolute", "relative", "beforeFirst", "afterLast", "close", "setFetchSize", "setFetchDirection");
+        private static final Set<String> STATEMENT_SETTINGS = ImmutableSet.of(
+                "setQueryTimeout", "setMaxRows", "setLargeMaxRows", "setMaxFieldSize", "setFetchSize", "setFetchDirection", "setEscapeProcessing", "setCursorName", "setPoolable");
+
+        private static final Method SET_AUTO_COMMIT = ClassUtils.getMethod(Connection.class, "setAutoCommit", boolean.class);
+        private static final Method COMMIT = ClassUtils.getMethod(Connection.class, "commit");
+        private static final Method CREATE_STATEMENT = ClassUtils.getMethod(Connection.class, "createStatement");
+        private static final Method ADD_BATCH = ClassUtils.getMethod(Statement.class, "addBatch", String.class);
+        private static final Method ADD_PREPARED_BATCH = ClassUtils.getMethod(PreparedStatement.class, "addBatch");
+        private static final Method EXECUTE_BATCH = ClassUtils.getMethod(Statement.class, "executeBatch");
+        private static final Method CLOSE = ClassUtils.getMethod(Statement.class, "close");
+
+        private final List<Record> records;
+        private final Map<String, Record> producers = new HashMap<>();
+        private final Map<String, Boolean> autoCommits = new HashMap<>();
+        private final List<Record> result = new ArrayList<>();
+        private int batchCount;
+
+        public static List<Record> compact(List<Record> records) {
+            return new RecordCompactor(removeUnusedQueries(records)).compact();
+        }
+
+        private RecordCompactor(List<Record> records) {
+            this.records = records;
+            records.stream().filter(r -> r.resultId != null).forEach(r -> producers.put(r.resultId, r));
+        }
+
+        private static List<Record> removeUnusedQueries(List<Record> records) {
+            Map<String, Record> producers = new HashMap<>();
+            Map<String, List<Record>> usages = new HashMap<>();
+            Set<String> references = new HashSet<>();
+
+            for (Record record : records) {
+                if (record.resultId != null) {
+                    producers.put(record.resultId, record);
+                }
+                usages.computeIfAbsent(record.thisId, k -> new ArrayList<>()).add(record);
+                record.arguments.stream()
+                        .filter(ArgumentReference.class::isInstance)
+                        .forEach(argument -> references.add(((ArgumentReference) argument).getReferenceId()));
+            }
+
+            Set<Record> removableRecords = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Record record : records) {
+                if (!record.methodName.equals("executeQuery") && !record.methodName.equals("execute")) {
+                    continue;
+                }
+                if (!isReadOnlyQuery(getSql(record, producers))) {
+                    continue;
+                }
+                if (record.resultId != null) {
+                    List<Record> resultUsages = usages.getOrDefault(record.resultId, ImmutableList.of());
+                    // the result set may be used to modify the data, e.g. by updateRow or insertRow methods
+                    if (references.contains(record.resultId) || !resultUsages.stream().allMatch(r -> NAVIGATION_METHODS.contains(r.methodName))) {
+                        continue;
+                    }
+                    removableRecords.addAll(resultUsages);
+                }
+                removableRecords.add(record);
+            }
+
+            return records.stream().filter(r -> !removableRecords.contains(r)).collect(Collectors.toList());
+        }
+
+        private List<Record> compact() {
+            int index = 0;
+            while (index < records.size()) {
+                int next = batchStatements(index);
+                if (next == index) {
+                    next = batchPreparedStatements(index);
+                }
+                if (next == index) {
+                    emit(records.get(index));
+                    next++;
+                }
+                index = next;
+            }
+            return result;
+        }
+
+        private int batchStatements(int start) {
+            String connectionId = null;
+            Set<String> createdStatements = new HashSet<>();
+            int openStatements = 0;
+            int executions = 0;
+            int batchedExecutions = 0;
+            int end = start;
+
+            for (int i = start; i < records.size(); i++) {
+                Record record = records.get(i);
+                Record producer = producers.get(record.thisId);
+                String statementConnectionId = isPlainStatementCreation(record) ? record.thisId :
+                        producer != null && isPlainStatementCreation(producer) ? producer.thisId : null;
+
+                if (statementConnectionId == null || (connectionId != null && !connectionId.equals(statementConnectionId))) {
+                    break;
+                }
+                connectionId = statementConnectionId;
+
+                if (isPlainStatementCreation(record)) {
+                    createdStatements.add(record.resultId);
+                    openStatements++;
+                } else if (isUpdateExecution(record) && isBatchable((String) record.arguments.get(0))) {
+                    executions++;
+                } else if (record.methodName.equals("close") && record.arguments.isEmpty()) {
+                    if (createdStatements.contains(record.thisId)) {
+                        openStatements--;
+                    }
+                } else {
+                    break;
+                }
+
+                // the statements created within the batch must not be used after the batch
+                if (openStatements == 0) {
+                    end = i + 1;
+                    batchedExecutions = executions;
+                }
+            }
+
+            if (batchedExecutions < MIN_BATCH_SIZE) {
+                return start;
+            }
+
+            List<Record> batch = records.subList(start, end);
+            String batchId = "batchStatement" + (++batchCount);
+            boolean transactional = beginTransaction(connectionId);
+
+            emit(new Record(connectionId, CREATE_STATEMENT, Connection.class, new Object[0], batchId));
+            batch.stream()
+                    .filter(RecordCompactor::isUpdateExecution)
+                    .forEach(r -> emit(new Record(batchId, ADD_BATCH, Statement.class, new Object[] { r.arguments.get(0) }, null)));
+            emit(new Record(batchId, EXECUTE_BATCH, Statement.class, new Object[0], null));
+            emit(new Record(batchId, CLOSE, Statement.class, new Object[0], null));
+
+            if (transactional) {
+                commitTransaction(connectionId);
+            }
+
+            batch.stream()
+                    .filter(r -> r.methodName.equals("close") && !createdStatements.contains(r.thisId))
+                    .forEach(this::emit);
+
+            return end;
+        }
+
+        private int batchPreparedStatements(int start) {
+            String statementId = records.get(start).thisId;
+            Record producer = producers.get(statementId);
+            if (producer == null || !isPreparedStatementCreation(producer) || !isBatchable((String) producer.arguments.get(0))) {
+                return start;
+            }
+
+            int executions = 0;
+            int end = start;
+
+            for (int i = start; i < records.size(); i++) {
+                Record record = records.get(i);
+                if (!record.thisId.equals(statementId)) {
+                    break;
+                }
+                if (record.methodName.equals("executeUpdate") && record.arguments.isEmpty()) {
+                    executions++;
+                    end = i + 1;
+                } else if (!isParameterSetter(record)) {
+                    break;
+                }
+            }
+
+            if (executions < MIN_BATCH_SIZE) {
+                return start;
+            }
+
+            String connectionId = producer.thisId;
+            boolean transactional = beginTransaction(connectionId);
+
+            for (Record record : records.subList(start, end)) {
+                if (record.methodName.equals("executeUpdate")) {
+                    emit(new Record(statementId, ADD_PREPARED_BATCH, PreparedStatement.class, new Object[0], null));
+                } else {
+                    emit(record);
+                }
+            }
+            emit(new Record(statementId, EXECUTE_BATCH, Statement.class, new Object[0], null));
+
+            if (transactional) {
+                commitTransaction(connectionId);
+            }
+
+            return end;
+        }
+
+        private boolean beginTransaction(String connectionId) {
+            // a transaction is used only if the auto-commit mode is known to be enabled
+            if (!Boolean.TRUE.equals(autoCommits.get(connectionId))) {
+                return false;
+            }
+            emit(new Record(connectionId, SET_AUTO_COMMIT, Connection.class, new Object[] { false }, null));
+            return true;
+        }
+
+        private void commitTransaction(String connectionId) {
+            emit(new Record(connectionId, COMMIT, Connection.class, new Object[0], null));
+            emit(new Record(connectionId, SET_AUTO_COMMIT, Connection.class, new Object[] { true }, null));
+        }
+
+        private void emit(Record record) {
+            if (record.methodName.equals("setAutoCommit") && record.arguments.size() == 1 && record.arguments.get(0) instanceof Boolean) {
+                autoCommits.put(record.thisId, (Boolean) record.arguments.get(0));
+            }
+            result.add(record);
+        }
+
+        private static boolean isPlainStatementCreation(Record record) {
+            return record.methodName.equals("createStatement") && record.arguments.isEmpty() && record.resultId != null;
+        }
+
+        private static boolean isPreparedStatementCreation(Record record) {
+            return record.methodName.equals("prepareStatement") && record.arguments.size() == 1 && record.arguments.get(0) instanceof String;
+        }
+
+        private static boolean isUpdateExecution(Record record) {
+            return (record.methodName.equals("execute") || record.methodName.equals("executeUpdate"))
+                    && record.arguments.size() == 1 && record.arguments.get(0) instanceof String;
+        }
+
+        private static boolean isParameterSetter(Record record) {
+            return (record.methodName.startsWith("set") && !STATEMENT_SETTINGS.contains(record.methodName))
+                    || record.methodName.equals("clearParameters");
+        }
+
+        private static String getSql(Record record, Map<String, Record> producers) {
+            if (record.arguments.size() == 1 && record.arguments.get(0) instanceof String) {
+                return (String) record.arguments.get(0);
+            }
+            Record producer = producers.get(record.thisId);
+            if (record.arguments.isEmpty() && producer != null && isPreparedStatementCreation(producer)) {
+                return (String) producer.arguments.get(0);
+            }
+            return null;
+        }
+
+        private static boolean isReadOnlyQuery(String sql) {
+            String statement = normalizeSql(sql);
+            if (statement == null || !QUERY_PATTERN.matcher(statement).matches() || UNSAFE_QUERY_PATTERN.matcher(statement).matches()) {
+                return false;
+            }
+            // functions called from a query may modify the database
+            Matcher matcher = FUNCTION_CALL_PATTERN.matcher(statement);
+            while (matcher.find()) {
+                if (!SAFE_FUNCTIONS.contains(matcher.group(1).toLowerCase())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isBatchable(String sql) {
+            String statement = normalizeSql(sql);
+            return statement != null
+                    && !NON_BATCHABLE_PATTERN.matcher(statement).matches()
+                    && !NON_TRANSACTIONAL_PATTERN.matcher(statement).matches();
+        }
+
+        private static String normalizeSql(String sql) {
+            if (sql == null) {
+                return null;
+            }
+            String statement = COMMENTS_PATTERN.matcher(sql).replaceAll(" ").trim();
+            while (statement.endsWith(";")) {
+                statement = statement.substring(0, statement.length() - 1).trim();
+            }
+            // multiple statements and literals containing semicolons are not supported
+            if (statement.isEmpty() || statement.contains(";")) {
+                return null;
+            }
+            return statement;
+        }
+    }
+
+    /**
+     * Recorded calls compiled into a sequence of steps with resolved method handles.
+     * All objects produced during the replay are stored in slots indexed by the position of their identifiers,
+     * so that no lookups by name are necessary when the plan is replayed.
+     */
+    private static class ReplayPlan {
+
+        private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+        private static final ConcurrentMap<Method, Optional<MethodHandle>> methodHandles = new ConcurrentHashMap<>();
+
+        private final ReplayStep[] steps;
+        private final int slotCount;
+
+        private ReplayPlan(List<Record> records) {
+            Map<String, Integer> slots = new HashMap<>();
+            slots.put(ROOT_REFERENCE, 0);
+
+            this.steps = new ReplayStep[records.size()];
+            for (int i = 0; i < steps.length; i++) {
+                Record record = records.get(i);
+                steps[i] = new ReplayStep(record, slots);
+                if (record.resultId != null) {
+                    slots.putIfAbsent(record.resultId, slots.size());
+                    steps[i].resultSlot = slots.get(record.resultId);
+                }
+            }
+            this.slotCount = slots.size();
+        }
+
+        public void replay(DataSource dataSource) {
+            Object[] slots = new Object[slotCount];
+            slots[0] = dataSource;
+
+            for (ReplayStep step : steps) {
+                step.execute(slots);
+            }
+        }
+
+        private static MethodHandle resolveMethodHandle(Method method) {
+            return methodHandles.computeIfAbsent(method, m -> {
+                try {
+                    MethodHandle handle = MethodHandles.publicLookup().unreflect(m).asFixedArity();
+                    int parameterCount = m.getParameterCount();
+                    return Optional.of(handle
+                            .asType(MethodType.genericMethodType(parameterCount + 1))
+                            .asSpreader(Object[].class, parameterCount)
+                            .asType(INVOKER_TYPE));
+                } catch (IllegalAccessException e) {
+                    return Optional.empty();
+                }
+            }).orElse(null);
+        }
+
+        private static Method findPublicMethod(Method method, Class<?> targetClass) {
+            Class<?> declaringClass = method.getDeclaringClass();
+            if (declaringClass.isInterface() && Modifier.isPublic(declaringClass.getModifiers())) {
+                return method;
+            }
+            // the recorded object may be a class-based proxy, so the method is resolved on a public interface if possible
+            for (Class<?> type : ClassUtils.getAllInterfacesForClassAsSet(targetClass)) {
+                if (Modifier.isPublic(type.getModifiers())) {
+                    try {
+                        return type.getMethod(method.getName(), method.getParameterTypes());
+                    } catch (NoSuchMethodException e) {
+                        // continue with the next interface
+                    }
+                }
+            }
+            if (Modifier.isPublic(declaringClass.getModifiers()) && Modifier.isPublic(method.getModifiers())) {
+                return method;
+            }
+            return null;
+        }
+
+        private static class ReplayStep {
+
+            private final int targetSlot;
+            private final Record record;
+            private final Class<?> receiverType;
+            private final MethodHandle handle;
+            private final Object[] arguments;
+            private final int[] referenceSlots;
+            private final boolean[] providedArguments;
+            private int resultSlot = -1;
+
+            private ReplayStep(Record record, Map<String, Integer> slots) {
+                this.targetSlot = slots.get(record.thisId);
+                this.record = record;
+                Method publicMethod = record.method != null ? findPublicMethod(record.method, record.targetClass) : null;
+                this.receiverType = publicMethod != null ? publicMethod.getDeclaringClass() : null;
+                this.handle = publicMethod != null ? resolveMethodHandle(publicMethod) : null;
+                this.arguments = record.arguments.toArray();
+                this.referenceSlots = new int[arguments.length];
+                this.providedArguments = new boolean[arguments.length];
+
+                for (int i = 0; i < arguments.length; i++) {
+                    if (arguments[i] instanceof ArgumentReference) {
+                        Integer slot = slots.get(((ArgumentReference) arguments[i]).getReferenceId());
+                        checkState(slot != null, "Unknown reference to %s", ((ArgumentReference) arguments[i]).getReferenceId());
+                        referenceSlots[i] = slot;
+                    } else {
+                        referenceSlots[i] = -1;
+                        providedArguments[i] = arguments[i] instanceof ArgumentProvider;
+                    }
+                }
+            }
+
+            public void execute(Object[] slots) {
+                Object target = slots[targetSlot];
+                Object[] arguments = new Object[this.arguments.length];
+
+                for (int i = 0; i < arguments.length; i++) {
+                    if (referenceSlots[i] >= 0) {
+                        arguments[i] = slots[referenceSlots[i]];
+                    } else if (providedArguments[i]) {
+                        arguments[i] = ((ArgumentProvider) this.arguments[i]).getArgument();
+                    } else {
+                        arguments[i] = this.arguments[i];
+                    }
+                }
+
+                Object result = invoke(target, arguments);
+                if (resultSlot >= 0) {
+                    checkState(result != null, "The result does not match the recorded data");
+                    slots[resultSlot] = result;
+                }
+            }
+
+            private Object invoke(Object target, Object[] arguments) {
+                if (handle == null || !receiverType.isInstance(target)) {
+                    return invokeMethod(target, record.methodName, arguments);
+                }
+                try {
+                    return (Object) handle.invokeExact(target, arguments);
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new UndeclaredThrowableException(e);
+                }
+            }
+        }
+    }
+
     private static class Record {
 
         private final String thisId;
         private final String methodName;
         private final List<Object> arguments;
         private final String resultId;
+        private final Method method;
+        private final Class<?> targetClass;
 
-        private Record(String thisId, String methodName, Object[] arguments, String resultId) {
+        private Record(String thisId, Method method, Class<?> targetClass, Object[] arguments, String resultId) {
+            this.thisId = thisId;
+            this.methodName = method.getName();
+            this.arguments = ImmutableList.copyOf(arguments);
+            this.resultId = resultId;
+            this.method = method;
+            this.targetClass = targetClass;
+        }
+
+        private Record(String thisId, String methodName, Method method, Object[] arguments, String resultId) {
             this.thisId = thisId;
             this.methodName = methodName;
             this.arguments = ImmutableList.copyOf(arguments);
             this.resultId = resultId;
+            this.method = method;
+            this.targetClass = method != null ? method.getDeclaringClass() : null;
         }
 
         @Override
@@ -453,28 +1323,67 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
 
     private static class NullArgumentProvider implements ArgumentProvider {
 
+        private static final NullArgumentProvider INSTANCE = new NullArgumentProvider();
+
         @Override
         public Object getArgument() {
             return null;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof NullArgumentProvider;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+
         @Override
         public String toString() {
             return "null";
         }
     }
 
+    /**
+     * Captured content of an input stream. Large streams are spilled to disk to keep recordings small in the heap.
+     */
     private static class InputStreamArgumentProvider implements ArgumentProvider {
 
         private final byte[] data;
+        private final SpilledContent spilled;
 
         public InputStreamArgumentProvider(InputStream stream) throws IOException {
-            data = FileCopyUtils.copyToByteArray(stream);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while (buffer.size() <= SPILL_THRESHOLD && (read = stream.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+
+            if (buffer.size() > SPILL_THRESHOLD) {
+                data = null;
+                spilled = SpilledContent.spill(buffer.toByteArray(), buffer.size(), stream);
+            } else {
+                data = buffer.toByteArray();
+                spilled = null;
+            }
+        }
+
+        private InputStreamArgumentProvider(byte[] data) {
+            this.data = data;
+            this.spilled = null;
+        }
+
+        private InputStreamArgumentProvider(SpilledContent spilled) {
+            this.data = null;
+            this.spilled = spilled;
         }
 
         @Override
         public Object getArgument() {
-            return new ByteArrayInputStream(data);
+            return spilled != null ? spilled.openStream() : new ByteArrayInputStream(data);
         }
 
         @Override
@@ -482,28 +1391,53 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             InputStreamArgumentProvider that = (InputStreamArgumentProvider) o;
-            return Arrays.equals(data, that.data);
+            return Arrays.equals(data, that.data) && Objects.equals(spilled, that.spilled);
         }
 
         @Override
         public int hashCode() {
-            return Arrays.hashCode(data);
+            return spilled != null ? spilled.hashCode() : Arrays.hashCode(data);
         }
     }
 
+    /**
+     * Captured content of a reader. Large readers are spilled to disk to keep recordings small in the heap.
+     */
     private static class ReaderArgumentProvider implements ArgumentProvider {
 
         private final char[] data;
+        private final SpilledContent spilled;
 
         public ReaderArgumentProvider(Reader reader) throws IOException {
-            CharArrayWriter writer = new CharArrayWriter();
-            FileCopyUtils.copy(reader, writer);
-            data = writer.toCharArray();
+            CharArrayWriter buffer = new CharArrayWriter();
+            char[] chunk = new char[8192];
+            int read;
+            while (buffer.size() * 2 <= SPILL_THRESHOLD && (read = reader.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+
+            if (buffer.size() * 2 > SPILL_THRESHOLD) {
+                data = null;
+                spilled = SpilledContent.spill(buffer.toCharArray(), buffer.size(), reader);
+            } else {
+                data = buffer.toCharArray();
+                spilled = null;
+            }
+        }
+
+        private ReaderArgumentProvider(char[] data) {
+            this.data = data;
+            this.spilled = null;
+        }
+
+        private ReaderArgumentProvider(SpilledContent spilled) {
+            this.data = null;
+            this.spilled = spilled;
         }
 
         @Override
         public Object getArgument() {
-            return new CharArrayReader(data);
+            return spilled != null ? spilled.openReader() : new CharArrayReader(data);
         }
 
         @Override
@@ -511,12 +1445,12 @@ public class RecordingMethodInterceptor implements MethodInterceptor {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             ReaderArgumentProvider that = (ReaderArgumentProvider) o;
-            return Arrays.equals(data, that.data);
+            return Arrays.equals(data, that.data) && Objects.equals(spilled, that.spilled);
         }
 
         @Override
         public int hashCode() {
-            return Arrays.hashCode(data);
+            return spilled != null ? spilled.hashCode() : Arrays.hashCode(data);
         }
     }
 }
@@ -16,8 +16,26 @@
 
 package io.zonky.test.db.preparer;
 
+import io.zonky.test.db.preparer.RecordingMethodInterceptor.ReplayableDatabasePreparerImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 public interface ReplayableDatabasePreparer extends DatabasePreparer {
 
     boolean hasRecords();
 
+    /**
+     * Returns a hash of the recorded data that identifies the preparer across JVMs and runs,
+     * or {@code null} if the recorded data contain arguments that can not be serialized.
+     */
+    String getContentHash();
+
+    void writeTo(OutputStream output) throws IOException;
+
+    static ReplayableDatabasePreparer readFrom(InputStream input) throws IOException {
+        return ReplayableDatabasePreparerImpl.readFrom(input);
+    }
+
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.preparer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.nio.charset.StandardCharsets.UTF_16BE;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Content of a large stream argument that has been moved out of the heap into a memory-mapped temporary file.
+ * Character data are stored in the UTF-16BE encoding, so they can be read back through a char view of the mapped buffer.
+ * Identical payloads are stored only once, the instances are shared across all recordings
+ * and the mapping is released when the last recording using it is garbage collected.
+ */
+final class SpilledContent {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpilledContent.class);
+
+    /**
+     * Captured streams larger than this number of bytes are spilled to disk.
+     */
+    static final int SPILL_THRESHOLD = 1024 * 1024;
+
+    private static final Cache<HashCode, SpilledContent> contents = CacheBuilder.newBuilder()
+            .weakValues()
+            .removalListener((RemovalListener<HashCode, SpilledContent>) notification -> deleteUnmappedFile(notification.getKey()))
+            .build();
+
+    // files that could not be deleted while they were mapped
+    private static final ConcurrentMap<HashCode, Path> undeletedFiles = new ConcurrentHashMap<>();
+
+    private final HashCode hash;
+    private final MappedByteBuffer buffer;
+
+    private SpilledContent(HashCode hash, MappedByteBuffer buffer) {
+        this.hash = hash;
+        this.buffer = buffer;
+    }
+
+    public static SpilledContent spill(byte[] prefix, int length, InputStream remainder) throws IOException {
+        Path file = Files.createTempFile("zonky-recording-", ".bin");
+        HashCode hash = null;
+        try {
+            HashingOutputStream output = new HashingOutputStream(Hashing.sha256(), new BufferedOutputStream(Files.newOutputStream(file)));
+            try (OutputStream stream = output) {
+                stream.write(prefix, 0, length);
+                copy(remainder, stream);
+            }
+            hash = output.hash();
+            return register(hash, file);
+        } finally {
+            delete(hash, file);
+        }
+    }
+
+    public static SpilledContent spill(char[] prefix, int length, Reader remainder) throws IOException {
+        Path file = Files.createTempFile("zonky-recording-", ".bin");
+        HashCode hash = null;
+        try {
+            HashingOutputStream output = new HashingOutputStream(Hashing.sha256(), Files.newOutputStream(file));
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(output, UTF_16BE))) {
+                writer.write(prefix, 0, length);
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = remainder.read(buffer)) != -1) {
+                    writer.write(buffer, 0, read);
+                }
+            }
+            hash = output.hash();
+            return register(hash, file);
+        } finally {
+            delete(hash, file);
+        }
+    }
+
+    private static SpilledContent register(HashCode hash, Path file) throws IOException {
+        SpilledContent content = contents.getIfPresent(hash);
+        if (content != null) {
+            return content;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Captured stream is too large: " + channel.size() + " bytes");
+            }
+            // the mapping remains valid even after the channel is closed and the file is deleted
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            SpilledContent spilled = new SpilledContent(hash, buffer);
+            SpilledContent existing = contents.asMap().putIfAbsent(hash, spilled);
+            return existing != null ? existing : spilled;
+        }
+    }
+
+    private static void delete(HashCode hash, Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // some platforms do not allow deleting of mapped files
+            logger.trace("Temporary file {} can not be deleted now, it will be deleted when the content is released", file, e);
+            file.toFile().deleteOnExit();
+            if (hash != null) {
+                undeletedFiles.put(hash, file);
+            }
+        }
+    }
+
+    private static void deleteUnmappedFile(HashCode hash) {
+        Path file = undeletedFiles.remove(hash);
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.trace("Temporary file {} can not be deleted now, it will be deleted on exit", file, e);
+            }
+        }
+    }
+
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+    }
+
+    public HashCode getHash() {
+        return hash;
+    }
+
+    public int size() {
+        return buffer.capacity();
+    }
+
+    public InputStream openStream() {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    public Reader openReader() {
+        return new CharBufferReader(buffer.duplicate().asCharBuffer());
+    }
+
+    public void writeTo(OutputStream output) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        byte[] chunk = new byte[8192];
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            output.write(chunk, 0, length);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SpilledContent that = (SpilledContent) o;
+        return hash.equals(that.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash.hashCode();
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(len, buffer.remaining());
+            buffer.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) {
+            int length = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static class CharBufferReader extends Reader {
+
+        private final CharBuffer buffer;
+
+        private CharBufferReader(CharBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(len, buffer.remaining());
+            buffer.get(cbuf, off, length);
+            return length;
+        }
+
+        @Override
+        public boolean ready() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -22,4 +22,12 @@ public interface DatabaseProvider {
 
     EmbeddedDatabase createDatabase(DatabasePreparer preparer) throws ProviderException;
 
+    /**
+     * Starts the underlying database server in advance, so that it is ready by the time the first database is requested.
+     * Creating databases does not depend on this method, the server is always started on demand.
+     */
+    default void warmUp() throws ProviderException {
+        // nothing to do
+    }
+
 }
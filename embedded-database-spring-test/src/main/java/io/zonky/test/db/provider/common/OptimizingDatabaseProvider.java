@@ -48,6 +48,11 @@ public class OptimizingDatabaseProvider implements DatabaseProvider {
         this.provider = provider;
     }
 
+    @Override
+    public void warmUp() throws ProviderException {
+        provider.warmUp();
+    }
+
     @Override
     public EmbeddedDatabase createDatabase(DatabasePreparer preparer) throws ProviderException {
         CompositeDatabasePreparer compositePreparer = preparer instanceof CompositeDatabasePreparer ?
@@ -25,12 +25,11 @@ import io.zonky.test.db.preparer.DatabasePreparer;
 import io.zonky.test.db.provider.DatabaseProvider;
 import io.zonky.test.db.provider.EmbeddedDatabase;
 import io.zonky.test.db.provider.ProviderException;
+import io.zonky.test.db.provider.common.PriorityThreadPoolTaskExecutor.PriorityTask;
 import io.zonky.test.db.util.RandomStringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.util.concurrent.ListenableFutureCallback;
-import org.springframework.util.concurrent.ListenableFutureTask;
 
 import java.util.Comparator;
 import java.util.List;
@@ -44,7 +43,6 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -64,7 +62,7 @@ public class PrefetchingDatabaseProvider implements DatabaseProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(PrefetchingDatabaseProvider.class);
 
-    protected static final ThreadPoolTaskExecutor taskExecutor = new PriorityThreadPoolTaskExecutor();
+    protected static final PriorityThreadPoolTaskExecutor taskExecutor = new PriorityThreadPoolTaskExecutor();
     protected static final ConcurrentMap<PipelineKey, DatabasePipeline> pipelines = new ConcurrentHashMap<>();
     protected static final AtomicLong databaseCount = new AtomicLong();
 
@@ -105,6 +103,11 @@ public class PrefetchingDatabaseProvider implements DatabaseProvider {
         return Objects.hash(provider, config);
     }
 
+    @Override
+    public void warmUp() throws ProviderException {
+        provider.warmUp();
+    }
+
     @Override
     public EmbeddedDatabase createDatabase(DatabasePreparer preparer) throws ProviderException {
         Stopwatch stopwatch = Stopwatch.createStarted();
@@ -118,10 +121,12 @@ public class PrefetchingDatabaseProvider implements DatabaseProvider {
         if (result != null) {
             prepareDatabase(key, LOWEST_PRECEDENCE);
         } else {
+            // requests made by speculative work keep its priority, so they never overtake work blocking other callers
+            int priority = PriorityThreadPoolTaskExecutor.currentPriority(HIGHEST_PRECEDENCE);
             boolean pipelineInitMode = pipeline.state.compareAndSet(NEW, INITIALIZING);
-            Optional<PrefetchingTask> task = prepareExistingDatabase(key, HIGHEST_PRECEDENCE);
+            Optional<PrefetchingTask> task = prepareExistingDatabase(key, priority);
             if (pipelineInitMode || !task.isPresent()) {
-                prepareNewDatabase(key, HIGHEST_PRECEDENCE);
+                prepareNewDatabase(key, priority);
             }
         }
 
@@ -371,21 +376,12 @@ public class PrefetchingDatabaseProvider implements DatabaseProvider {
         }
     }
 
-    protected static class PriorityThreadPoolTaskExecutor extends ThreadPoolTaskExecutor {
-
-        @Override
-        protected BlockingQueue<Runnable> createQueue(int queueCapacity) {
-            return new PriorityBlockingQueue<>();
-        }
-    }
-
-    protected static class PrefetchingTask extends ListenableFutureTask<EmbeddedDatabase> implements Comparable<PrefetchingTask> {
+    protected static class PrefetchingTask extends PriorityTask<EmbeddedDatabase> {
 
         private final AtomicBoolean executed = new AtomicBoolean(false);
 
         public final Callable<EmbeddedDatabase> action;
         public final TaskType type;
-        public final int priority;
 
         public static PrefetchingTask forPreparer(DatabaseProvider provider, DatabasePreparer preparer, int priority) {
             return new PrefetchingTask(priority, NEW_DATABASE, () -> provider.createDatabase(preparer));
@@ -407,11 +403,10 @@ public class PrefetchingDatabaseProvider implements DatabaseProvider {
         }
 
         private PrefetchingTask(int priority, TaskType type, Callable<EmbeddedDatabase> action) {
-            super(action);
+            super(action, priority);
 
             this.action = action;
             this.type = type;
-            this.priority = priority;
         }
 
         @Override
@@ -430,11 +425,6 @@ public class PrefetchingDatabaseProvider implements DatabaseProvider {
             }
         }
 
-        @Override
-        public int compareTo(PrefetchingTask task) {
-            return Integer.compare(priority, task.priority);
-        }
-
         protected enum TaskType {
 
             NEW_DATABASE, EXISTING_DATABASE
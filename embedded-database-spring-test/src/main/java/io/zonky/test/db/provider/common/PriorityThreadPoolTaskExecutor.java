@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.common;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureTask;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool executor that runs queued tasks in the order of their priorities.
+ * <p>
+ * Priorities follow the {@link org.springframework.core.Ordered} convention, lower values are executed first.
+ * The priority of a running task is exposed to the code executed by the task,
+ * so that any nested work can be scheduled with the same priority.
+ */
+public class PriorityThreadPoolTaskExecutor extends ThreadPoolTaskExecutor {
+
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private static final ThreadLocal<Integer> currentPriority = new ThreadLocal<>();
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Returns the priority of a prioritized task running in the current thread,
+     * or the given default priority if the current thread is not executing any such task.
+     */
+    public static int currentPriority(int defaultPriority) {
+        Integer priority = currentPriority.get();
+        return priority != null ? priority : defaultPriority;
+    }
+
+    /**
+     * Runs the given task in the current thread with the given priority,
+     * so that the work of a thread not managed by this executor can be explicitly marked as a foreground or a background work.
+     */
+    public static void runWithPriority(int priority, Runnable task) {
+        Integer previousPriority = currentPriority.get();
+        currentPriority.set(priority);
+        try {
+            task.run();
+        } finally {
+            if (previousPriority != null) {
+                currentPriority.set(previousPriority);
+            } else {
+                currentPriority.remove();
+            }
+        }
+    }
+
+    @Override
+    protected BlockingQueue<Runnable> createQueue(int queueCapacity) {
+        return new PriorityBlockingQueue<>();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        super.execute(task instanceof PriorityTask ? task : new PriorityTask<>(task, null, DEFAULT_PRIORITY));
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return submitListenable(task);
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return submitListenable(task);
+    }
+
+    @Override
+    public ListenableFuture<?> submitListenable(Runnable task) {
+        PriorityTask<Object> future = new PriorityTask<>(task, null, DEFAULT_PRIORITY);
+        execute(future);
+        return future;
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submitListenable(Callable<T> task) {
+        return submitListenable(task, DEFAULT_PRIORITY);
+    }
+
+    public <T> ListenableFuture<T> submitListenable(Callable<T> task, int priority) {
+        PriorityTask<T> future = new PriorityTask<>(task, priority);
+        execute(future);
+        return future;
+    }
+
+    public static class PriorityTask<T> extends ListenableFutureTask<T> implements Comparable<PriorityTask<?>> {
+
+        private final long order = sequence.getAndIncrement();
+
+        public final int priority;
+
+        public PriorityTask(Callable<T> callable, int priority) {
+            super(callable);
+            this.priority = priority;
+        }
+
+        public PriorityTask(Runnable runnable, T result, int priority) {
+            super(runnable, result);
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            runWithPriority(priority, super::run);
+        }
+
+        @Override
+        public int compareTo(PriorityTask<?> task) {
+            int result = Integer.compare(priority, task.priority);
+            return result != 0 ? result : Long.compare(order, task.order);
+        }
+    }
+}
@@ -77,6 +77,11 @@ public class TemplatingDatabaseProvider implements DatabaseProvider {
         return Objects.hash(provider, config);
     }
 
+    @Override
+    public void warmUp() throws ProviderException {
+        provider.warmUp();
+    }
+
     @Override
     public EmbeddedDatabase createDatabase(DatabasePreparer preparer) throws ProviderException {
         CompositeDatabasePreparer compositePreparer = preparer instanceof CompositeDatabasePreparer ?
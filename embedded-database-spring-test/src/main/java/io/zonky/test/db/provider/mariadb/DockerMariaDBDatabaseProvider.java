@@ -28,8 +28,12 @@ import io.zonky.test.db.preparer.DatabasePreparer;
 import io.zonky.test.db.provider.DatabaseProvider;
 import io.zonky.test.db.provider.EmbeddedDatabase;
 import io.zonky.test.db.provider.ProviderException;
+import io.zonky.test.db.provider.common.PriorityThreadPoolTaskExecutor;
+import io.zonky.test.db.provider.support.AdminDatabase;
 import io.zonky.test.db.provider.support.BlockingDatabaseWrapper;
+import io.zonky.test.db.provider.support.ConnectionAdmissionController;
 import io.zonky.test.db.util.PropertyUtils;
+import io.zonky.test.db.util.RandomStringUtils;
 import org.mariadb.jdbc.MariaDbDataSource;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeanWrapper;
@@ -37,26 +41,27 @@ import org.springframework.beans.BeanWrapperImpl;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.core.env.Environment;
 import org.springframework.util.ClassUtils;
-import org.testcontainers.containers.Container.ExecResult;
 import org.testcontainers.containers.MariaDBContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.utility.DockerImageName;
 
-import javax.sql.DataSource;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import static java.util.Collections.emptyList;
+import static org.springframework.core.Ordered.HIGHEST_PRECEDENCE;
 
 public class DockerMariaDBDatabaseProvider implements DatabaseProvider {
 
@@ -80,11 +85,23 @@ public class DockerMariaDBDatabaseProvider implements DatabaseProvider {
         boolean tmpfsEnabled = environment.getProperty("zonky.test.database.mariadb.docker.tmpfs.enabled", boolean.class, false);
 
         Map<String, String> connectProperties = PropertyUtils.extractAll(environment, "zonky.test.database.mariadb.client.properties");
+        int maxIdleConnections = environment.getProperty("zonky.test.database.connection-pool.max-idle", int.class, 0);
+        boolean leakDetection = environment.getProperty("zonky.test.database.leak-detection.enabled", boolean.class, false);
 
         List<MariaDBContainerCustomizer> customizers = Optional.ofNullable(containerCustomizers.getIfAvailable()).orElse(emptyList());
 
         this.databaseConfig = new DatabaseConfig(dockerImage, tmpfsOptions, tmpfsEnabled, customizers);
-        this.clientConfig = new ClientConfig(connectProperties);
+        this.clientConfig = new ClientConfig(connectProperties, maxIdleConnections, leakDetection);
+    }
+
+    @Override
+    public void warmUp() throws ProviderException {
+        try {
+            databasesPools.get(databaseConfig).warmUp();
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), ProviderException.class);
+            throw new ProviderException("Unexpected error when preparing a database cluster", e.getCause());
+        }
     }
 
     @Override
@@ -116,34 +133,59 @@ public class DockerMariaDBDatabaseProvider implements DatabaseProvider {
 
     protected static class DatabasePool {
 
-        private final BlockingQueue<DatabaseInstance> databaseInstances = new LinkedBlockingQueue<>();
+        private final List<DatabaseInstance> databaseInstances = new CopyOnWriteArrayList<>();
         private final DatabaseConfig databaseConfig;
 
         private DatabasePool(DatabaseConfig config) {
             this.databaseConfig = config;
         }
 
+        public synchronized void warmUp() {
+            if (databaseInstances.isEmpty()) {
+                databaseInstances.add(new DatabaseInstance(databaseConfig));
+            }
+        }
+
         public EmbeddedDatabase createDatabase(ClientConfig config, DatabasePreparer preparer) throws SQLException {
-            DatabaseInstance instance = databaseInstances.poll();
-            if (instance == null) {
-                instance = new DatabaseInstance(databaseConfig, this);
+            DatabaseInstance instance = reserveInstance();
+            try {
+                return instance.createDatabase(config, preparer);
+            } finally {
+                instance.pendingPreparations.decrementAndGet();
             }
-            return instance.createDatabase(config, preparer);
         }
 
-        private void recycle(DatabaseInstance instance) {
-            databaseInstances.offer(instance);
+        private synchronized DatabaseInstance reserveInstance() {
+            // databases are spread over the running containers, a new container is started only when all of them are saturated,
+            // prefetching threads never start additional containers and rather wait for the connections of the existing ones
+            boolean backgroundRequest = PriorityThreadPoolTaskExecutor.currentPriority(HIGHEST_PRECEDENCE) != HIGHEST_PRECEDENCE;
+            DatabaseInstance instance = databaseInstances.stream()
+                    .filter(i -> backgroundRequest || !i.isSaturated())
+                    .min(Comparator.comparingInt(DatabaseInstance::getLoad))
+                    .orElse(null);
+            if (instance == null) {
+                instance = new DatabaseInstance(databaseConfig);
+                databaseInstances.add(instance);
+            }
+            instance.pendingPreparations.incrementAndGet();
+            return instance;
         }
     }
 
     protected static class DatabaseInstance {
 
-        private final DatabasePool databasePool;
-        private final MariaDBContainer container;
-        private final Semaphore semaphore;
+        private static final int MAX_CONNECTIONS = 150;
+        private static final int MAX_CONCURRENT_PREPARATIONS = Runtime.getRuntime().availableProcessors();
 
-        private DatabaseInstance(DatabaseConfig config, DatabasePool pool) {
-            databasePool = pool;
+        private final MariaDBContainer container;
+        private final ConnectionAdmissionController admissionController;
+        // drops are retried when waiting for a lock times out (mariadb error code 1205)
+        private final AdminDatabase<ClientConfig> adminDatabase = new AdminDatabase<>(
+                config -> getDatabase(config, "mysql", 0), DatabaseInstance::dropDatabase, e -> e.getErrorCode() == 1205);
+        private final AtomicInteger pendingPreparations = new AtomicInteger();
+        private volatile boolean privilegesGranted;
+
+        private DatabaseInstance(DatabaseConfig config) {
             container = createContainer(config.dockerImage);
 
             if (config.tmpfsEnabled) {
@@ -160,7 +202,7 @@ public class DockerMariaDBDatabaseProvider implements DatabaseProvider {
             container.start();
             container.followOutput(new Slf4jLogConsumer(LoggerFactory.getLogger(DockerMariaDBDatabaseProvider.class)));
 
-            semaphore = new Semaphore(150);
+            admissionController = new ConnectionAdmissionController(MAX_CONNECTIONS);
         }
 
         private MariaDBContainer createContainer(String dockerImage) {
@@ -171,47 +213,71 @@ public class DockerMariaDBDatabaseProvider implements DatabaseProvider {
             }
         }
 
+        private boolean isSaturated() {
+            // the connections reserved for foreground requests are kept free, so tests never wait for a new container
+            return admissionController.getActiveConnections() >= MAX_CONNECTIONS - MAX_CONNECTIONS / 10
+                    || pendingPreparations.get() >= MAX_CONCURRENT_PREPARATIONS;
+        }
+
+        private int getLoad() {
+            return pendingPreparations.get() * MAX_CONNECTIONS + admissionController.getActiveConnections();
+        }
+
         public EmbeddedDatabase createDatabase(ClientConfig config, DatabasePreparer preparer) throws SQLException {
-            String databaseName = container.getDatabaseName();
-            executeStatement(config, String.format("CREATE DATABASE IF NOT EXISTS %s", databaseName));
+            grantPrivileges(config);
+
+            String databaseName = RandomStringUtils.randomAlphabetic(12).toLowerCase(Locale.ENGLISH);
+            adminDatabase.execute(config, String.format("CREATE DATABASE %s", databaseName));
+
+            BlockingDatabaseWrapper database = null;
             try {
-                EmbeddedDatabase database = getDatabase(config, databaseName);
+                database = getDatabase(config, databaseName, config.maxIdleConnections);
                 if (preparer != null) {
                     preparer.prepare(database);
                 }
+                // the database may wait in the prefetching queue or be used as a template, so it must not hold any connections
+                database.evictIdleConnections();
                 return database;
             } catch (Exception e) {
-                try {
-                    cleanDatabase(config, databaseName);
-                } catch (Exception ce) {
-                    e.addSuppressed(ce);
+                if (database != null) {
+                    database.evictIdleConnections();
                 }
+                adminDatabase.dropDatabase(config, databaseName);
                 throw e;
             }
         }
 
-        protected void cleanDatabase(ClientConfig config, String dbName) {
-            try {
-                String dropCommand = "mysql -uroot -pdocker -N -e \"show databases\" | grep -v -E \"^(information_schema|performance_schema|mysql|sys)$\" | awk '{print \"drop database \" $1 \"\"}' | mysql -uroot -pdocker";
-                ExecResult dropResult = container.execInContainer("sh", "-c", dropCommand);
-                if (dropResult.getExitCode() != 0) {
-                    throw new ProviderException("Unexpected error when cleaning up the database");
-                }
-                databasePool.recycle(this);
-            } catch (Exception e) {
-                Throwables.throwIfInstanceOf(e.getCause(), ProviderException.class);
-                throw new ProviderException("Unexpected error when cleaning up the database", e.getCause());
+        private synchronized void grantPrivileges(ClientConfig config) throws SQLException {
+            // the container user has access only to the default database, the randomly named databases need global privileges
+            if (!privilegesGranted && !"root".equals(container.getUsername())) {
+                adminDatabase.execute(config, String.format("GRANT ALL PRIVILEGES ON *.* TO '%s'@'%%'", container.getUsername()));
             }
+            privilegesGranted = true;
         }
 
-        private void executeStatement(ClientConfig config, String ddlStatement) throws SQLException {
-            DataSource dataSource = getDatabase(config, "mysql");
-            try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(ddlStatement)) {
-                stmt.execute();
+        private static void dropDatabase(Statement statement, ClientConfig config, String dbName) throws SQLException {
+            // connections leaked by tests would block the drop on metadata locks, so they are terminated first
+            List<Long> processIds = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery(String.format(
+                    "SELECT id FROM information_schema.processlist WHERE db = '%s' AND id <> CONNECTION_ID()", dbName))) {
+                while (resultSet.next()) {
+                    processIds.add(resultSet.getLong(1));
+                }
+            }
+            for (Long processId : processIds) {
+                try {
+                    statement.execute(String.format("KILL %d", processId));
+                } catch (SQLException e) {
+                    // the connection has been closed in the meantime (mariadb error code 1094)
+                    if (e.getErrorCode() != 1094) {
+                        throw e;
+                    }
+                }
             }
+            statement.execute(String.format("DROP DATABASE IF EXISTS %s", dbName));
         }
 
-        private EmbeddedDatabase getDatabase(ClientConfig config, String dbName) throws SQLException {
+        private BlockingDatabaseWrapper getDatabase(ClientConfig config, String dbName, int maxIdleConnections) throws SQLException {
             MariaDbDataSource dataSource = new MariaDbDataSource();
 
             dataSource.setUrl(String.format("jdbc:mariadb://%s:%s/%s",
@@ -229,7 +295,7 @@ public class DockerMariaDBDatabaseProvider implements DatabaseProvider {
                 dataSourceWrapper.setPropertyValue(entry.getKey(), entry.getValue());
             }
 
-            return new BlockingDatabaseWrapper(new MariaDBEmbeddedDatabase(dataSource, () -> cleanDatabase(config, dbName)), semaphore);
+            return new BlockingDatabaseWrapper(new MariaDBEmbeddedDatabase(dataSource, () -> adminDatabase.dropDatabase(config, dbName)), admissionController.forDatabase(), maxIdleConnections, null, config.leakDetection);
         }
     }
 
@@ -269,9 +335,13 @@ public class DockerMariaDBDatabaseProvider implements DatabaseProvider {
     private static class ClientConfig {
 
         private final Map<String, String> connectProperties;
+        private final int maxIdleConnections;
+        private final boolean leakDetection;
 
-        private ClientConfig(Map<String, String> connectProperties) {
+        private ClientConfig(Map<String, String> connectProperties, int maxIdleConnections, boolean leakDetection) {
             this.connectProperties = ImmutableMap.copyOf(connectProperties);
+            this.maxIdleConnections = maxIdleConnections;
+            this.leakDetection = leakDetection;
         }
 
         @Override
@@ -279,12 +349,14 @@ public class DockerMariaDBDatabaseProvider implements DatabaseProvider {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             ClientConfig that = (ClientConfig) o;
-            return Objects.equals(connectProperties, that.connectProperties);
+            return maxIdleConnections == that.maxIdleConnections &&
+                    leakDetection == that.leakDetection &&
+                    Objects.equals(connectProperties, that.connectProperties);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(connectProperties);
+            return Objects.hash(connectProperties, maxIdleConnections, leakDetection);
         }
     }
 }
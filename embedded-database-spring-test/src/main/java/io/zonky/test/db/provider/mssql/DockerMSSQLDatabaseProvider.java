@@ -31,11 +31,13 @@ import io.zonky.test.db.provider.DatabaseTemplate;
 import io.zonky.test.db.provider.EmbeddedDatabase;
 import io.zonky.test.db.provider.ProviderException;
 import io.zonky.test.db.provider.TemplatableDatabaseProvider;
+import io.zonky.test.db.provider.support.AdminDatabase;
 import io.zonky.test.db.provider.support.BlockingDatabaseWrapper;
+import io.zonky.test.db.provider.support.ConnectionAdmissionController;
+import io.zonky.test.db.provider.support.DatabaseReaper;
 import io.zonky.test.db.provider.support.SimpleDatabaseTemplate;
 import io.zonky.test.db.util.PropertyUtils;
 import io.zonky.test.db.util.RandomStringUtils;
-import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeanWrapper;
 import org.springframework.beans.BeanWrapperImpl;
@@ -46,26 +48,19 @@ import org.testcontainers.containers.MSSQLServerContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.utility.DockerImageName;
 
-import javax.sql.DataSource;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Semaphore;
 
 import static java.util.Collections.emptyList;
 import static org.testcontainers.containers.MSSQLServerContainer.MS_SQL_SERVER_PORT;
 
 public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider {
 
-    private static final Logger logger = LoggerFactory.getLogger(DockerMSSQLDatabaseProvider.class);
-
     private static final LoadingCache<DatabaseConfig, DatabaseInstance> databases = CacheBuilder.newBuilder()
             .build(new CacheLoader<DatabaseConfig, DatabaseInstance>() {
                 public DatabaseInstance load(DatabaseConfig config) {
@@ -79,10 +74,12 @@ public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider
     public DockerMSSQLDatabaseProvider(Environment environment, ObjectProvider<List<MSSQLServerContainerCustomizer>> containerCustomizers) {
         String dockerImage = environment.getProperty("zonky.test.database.mssql.docker.image", "mcr.microsoft.com/mssql/server:2017-latest");
         Map<String, String> connectProperties = PropertyUtils.extractAll(environment, "zonky.test.database.mssql.client.properties");
+        int maxIdleConnections = environment.getProperty("zonky.test.database.connection-pool.max-idle", int.class, 0);
+        boolean leakDetection = environment.getProperty("zonky.test.database.leak-detection.enabled", boolean.class, false);
         List<MSSQLServerContainerCustomizer> customizers = Optional.ofNullable(containerCustomizers.getIfAvailable()).orElse(emptyList());
 
         this.databaseConfig = new DatabaseConfig(dockerImage, customizers);
-        this.clientConfig = new ClientConfig(connectProperties);
+        this.clientConfig = new ClientConfig(connectProperties, maxIdleConnections, leakDetection);
     }
 
     @Override
@@ -98,6 +95,16 @@ public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider
         }
     }
 
+    @Override
+    public void warmUp() throws ProviderException {
+        try {
+            databases.get(databaseConfig);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), ProviderException.class);
+            throw new ProviderException("Unexpected error when preparing a database cluster", e.getCause());
+        }
+    }
+
     @Override
     public EmbeddedDatabase createDatabase(DatabaseRequest request) throws ProviderException {
         try {
@@ -128,7 +135,13 @@ public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider
     protected static class DatabaseInstance {
 
         private final MSSQLServerContainer container;
-        private final Semaphore semaphore;
+        private final ConnectionAdmissionController admissionController;
+        // drops are retried while the database is in use (mssql server error code 3702)
+        private final AdminDatabase<ClientConfig> adminDatabase = new AdminDatabase<>(
+                config -> getDatabase(config, "master", 0),
+                (statement, config, databaseName) -> statement.execute(String.format("DROP DATABASE IF EXISTS %s", databaseName)),
+                e -> e.getErrorCode() == 3702);
+        private final DatabaseReaper templateReaper = new DatabaseReaper(null, e -> false);
 
         private DatabaseInstance(DatabaseConfig config) {
             container = createContainer(config.dockerImage);
@@ -137,7 +150,7 @@ public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider
             container.start();
             container.followOutput(new Slf4jLogConsumer(LoggerFactory.getLogger(DockerMSSQLDatabaseProvider.class)));
 
-            semaphore = new Semaphore(32767);
+            admissionController = new ConnectionAdmissionController(32767);
         }
 
         private MSSQLServerContainer createContainer(String dockerImage) {
@@ -165,20 +178,26 @@ public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider
             String databaseName = RandomStringUtils.randomAlphabetic(12).toLowerCase(Locale.ENGLISH);
 
             if (template != null) {
-                executeStatement(config, String.format("RESTORE DATABASE %s FROM DISK = N'/var/opt/mssql/template/%s.bak' WITH MOVE '%s' TO N'/var/opt/mssql/data/%s.mdf', MOVE '%s_log' TO N'/var/opt/mssql/data/%s_log.ldf'",
+                adminDatabase.execute(config, String.format("RESTORE DATABASE %s FROM DISK = N'/var/opt/mssql/template/%s.bak' WITH MOVE '%s' TO N'/var/opt/mssql/data/%s.mdf', MOVE '%s_log' TO N'/var/opt/mssql/data/%s_log.ldf'",
                         databaseName, template.getTemplateName(), template.getTemplateName(), databaseName, template.getTemplateName(), databaseName));
             } else {
-                executeStatement(config, String.format("CREATE DATABASE %s", databaseName));
+                adminDatabase.execute(config, String.format("CREATE DATABASE %s", databaseName));
             }
 
+            BlockingDatabaseWrapper database = null;
             try {
-                EmbeddedDatabase database = getDatabase(config, databaseName);
+                database = getDatabase(config, databaseName, config.maxIdleConnections);
                 if (preparer != null) {
                     preparer.prepare(database);
                 }
+                // the database may wait in the prefetching queue or be used as a template, so it must not hold any connections
+                database.evictIdleConnections();
                 return database;
             } catch (Exception e) {
-                dropDatabase(config, databaseName);
+                if (database != null) {
+                    database.evictIdleConnections();
+                }
+                adminDatabase.dropDatabase(config, databaseName);
                 throw e;
             }
         }
@@ -188,45 +207,17 @@ public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider
                 ISQLServerDataSource dataSource = database.unwrap(ISQLServerDataSource.class);
                 String templateName = dataSource.getDatabaseName();
 
-                executeStatement(config, String.format("BACKUP DATABASE %s TO DISK = N'/var/opt/mssql/template/%s.bak'", templateName, templateName));
+                adminDatabase.execute(config, String.format("BACKUP DATABASE %s TO DISK = N'/var/opt/mssql/template/%s.bak'", templateName, templateName));
                 return new SimpleDatabaseTemplate(templateName, () -> dropTemplate(templateName));
             }
         }
 
-        private void dropDatabase(ClientConfig config, String dbName) {
-            CompletableFuture.runAsync(() -> {
-                try {
-                    executeStatement(config, String.format("DROP DATABASE IF EXISTS %s", dbName));
-                } catch (SQLException e) {
-                    if (e.getErrorCode() == 3702) { // mssql server error code for database in use condition
-                        if (logger.isTraceEnabled()) {
-                            logger.warn("Unable to release '{}' database", dbName, e);
-                        } else {
-                            logger.warn("Unable to release '{}' database", dbName);
-                        }
-                    }
-                }
-            });
-        }
-
         private void dropTemplate(String templateName) {
-            CompletableFuture.runAsync(() -> {
-                try {
-                    container.execInContainer("rm", String.format("/var/opt/mssql/template/%s.bak", templateName));
-                } catch (Exception e) {
-                    logger.error("Unable to release '{}' database template", templateName, e);
-                }
-            });
-        }
-
-        private void executeStatement(ClientConfig config, String ddlStatement) throws SQLException {
-            DataSource dataSource = getDatabase(config, "master");
-            try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(ddlStatement)) {
-                stmt.execute();
-            }
+            templateReaper.drop(templateName, connection ->
+                    container.execInContainer("rm", String.format("/var/opt/mssql/template/%s.bak", templateName)));
         }
 
-        private EmbeddedDatabase getDatabase(ClientConfig config, String dbName) {
+        private BlockingDatabaseWrapper getDatabase(ClientConfig config, String dbName, int maxIdleConnections) {
             SQLServerDataSource dataSource = new SQLServerDataSource();
 
             dataSource.setServerName(container.getContainerIpAddress());
@@ -243,7 +234,7 @@ public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider
                 dataSourceWrapper.setPropertyValue(entry.getKey(), entry.getValue());
             }
 
-            return new BlockingDatabaseWrapper(new MsSQLEmbeddedDatabase(dataSource, () -> dropDatabase(config, dbName)), semaphore);
+            return new BlockingDatabaseWrapper(new MsSQLEmbeddedDatabase(dataSource, () -> adminDatabase.dropDatabase(config, dbName)), admissionController.forDatabase(), maxIdleConnections, null, config.leakDetection);
         }
     }
 
@@ -277,9 +268,13 @@ public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider
     private static class ClientConfig {
 
         private final Map<String, String> connectProperties;
+        private final int maxIdleConnections;
+        private final boolean leakDetection;
 
-        private ClientConfig(Map<String, String> connectProperties) {
+        private ClientConfig(Map<String, String> connectProperties, int maxIdleConnections, boolean leakDetection) {
             this.connectProperties = ImmutableMap.copyOf(connectProperties);
+            this.maxIdleConnections = maxIdleConnections;
+            this.leakDetection = leakDetection;
         }
 
         @Override
@@ -287,12 +282,14 @@ public class DockerMSSQLDatabaseProvider implements TemplatableDatabaseProvider
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             ClientConfig that = (ClientConfig) o;
-            return Objects.equals(connectProperties, that.connectProperties);
+            return maxIdleConnections == that.maxIdleConnections &&
+                    leakDetection == that.leakDetection &&
+                    Objects.equals(connectProperties, that.connectProperties);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(connectProperties);
+            return Objects.hash(connectProperties, maxIdleConnections, leakDetection);
         }
     }
 }
@@ -30,13 +30,14 @@ import io.zonky.test.db.provider.DatabaseTemplate;
 import io.zonky.test.db.provider.EmbeddedDatabase;
 import io.zonky.test.db.provider.ProviderException;
 import io.zonky.test.db.provider.TemplatableDatabaseProvider;
+import io.zonky.test.db.provider.support.AdminDatabase;
 import io.zonky.test.db.provider.support.BlockingDatabaseWrapper;
+import io.zonky.test.db.provider.support.ConnectionAdmissionController;
 import io.zonky.test.db.provider.support.SimpleDatabaseTemplate;
 import io.zonky.test.db.util.PropertyUtils;
 import io.zonky.test.db.util.RandomStringUtils;
 import org.postgresql.ds.PGSimpleDataSource;
 import org.postgresql.ds.common.BaseDataSource;
-import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.core.env.Environment;
@@ -45,9 +46,6 @@ import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.utility.DockerImageName;
 
-import javax.sql.DataSource;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
@@ -55,9 +53,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Semaphore;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -66,7 +62,7 @@ import static org.testcontainers.containers.PostgreSQLContainer.POSTGRESQL_PORT;
 
 public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvider {
 
-    private static final Logger logger = LoggerFactory.getLogger(DockerPostgresDatabaseProvider.class);
+    private static final int MAX_IDLE_ADMIN_CONNECTIONS = 3;
 
     private static final String DEFAULT_POSTGRES_USERNAME = "postgres";
     private static final String DEFAULT_POSTGRES_PASSWORD = "docker";
@@ -88,12 +84,15 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
 
         Map<String, String> initdbProperties = PropertyUtils.extractAll(environment, "zonky.test.database.postgres.initdb.properties");
         Map<String, String> configProperties = PropertyUtils.extractAll(environment, "zonky.test.database.postgres.server.properties");
+        PostgresServerProfile serverProfile = PostgresServerProfile.of(environment);
         Map<String, String> connectProperties = PropertyUtils.extractAll(environment, "zonky.test.database.postgres.client.properties");
+        int maxIdleConnections = environment.getProperty("zonky.test.database.connection-pool.max-idle", int.class, 0);
+        boolean leakDetection = environment.getProperty("zonky.test.database.leak-detection.enabled", boolean.class, false);
 
         List<PostgreSQLContainerCustomizer> customizers = Optional.ofNullable(containerCustomizers.getIfAvailable()).orElse(emptyList());
 
-        this.databaseConfig = new DatabaseConfig(dockerImage, tmpfsOptions, tmpfsEnabled, initdbProperties, configProperties, customizers);
-        this.clientConfig = new ClientConfig(connectProperties);
+        this.databaseConfig = new DatabaseConfig(dockerImage, tmpfsOptions, tmpfsEnabled, initdbProperties, configProperties, serverProfile, customizers);
+        this.clientConfig = new ClientConfig(connectProperties, maxIdleConnections, leakDetection);
     }
 
     @Override
@@ -107,6 +106,16 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
         }
     }
 
+    @Override
+    public void warmUp() throws ProviderException {
+        try {
+            databases.get(databaseConfig);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), ProviderException.class);
+            throw new ProviderException("Unexpected error when preparing a database cluster", e.getCause());
+        }
+    }
+
     @Override
     public EmbeddedDatabase createDatabase(DatabaseRequest request) throws ProviderException {
         try {
@@ -137,18 +146,20 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
     protected static class DatabaseInstance {
 
         private final PostgreSQLContainer container;
-        private final Semaphore semaphore;
+        private final ConnectionAdmissionController admissionController;
+        // warm connections to the maintenance database save a backend startup for every create and drop statement
+        private final AdminDatabase<ClientConfig> adminDatabase = PostgresAdminDatabase.create(
+                config -> getDatabase(config, "postgres", MAX_IDLE_ADMIN_CONNECTIONS), config -> config.leakDetection);
 
         private DatabaseInstance(DatabaseConfig config) {
             String initdbArgs = config.initdbProperties.entrySet().stream()
                     .map(e -> String.format("--%s=%s", e.getKey(), e.getValue()))
                     .collect(Collectors.joining(" "));
 
-            Map<String, String> serverProperties = new HashMap<>(config.configProperties);
+            Map<String, String> serverProperties = new HashMap<>(config.serverProfile.serverProperties(config.configProperties));
 
             serverProperties.putIfAbsent("fsync", "off");
             serverProperties.putIfAbsent("full_page_writes", "off");
-            serverProperties.putIfAbsent("max_connections", "300");
 
             String postgresArgs = serverProperties.entrySet().stream()
                     .map(e -> String.format("-c %s=%s", e.getKey(), e.getValue()))
@@ -173,7 +184,13 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
             container.start();
             container.followOutput(new Slf4jLogConsumer(LoggerFactory.getLogger(DockerPostgresDatabaseProvider.class)));
 
-            semaphore = new Semaphore(Integer.parseInt(serverProperties.get("max_connections")));
+            PGSimpleDataSource dataSource = new PGSimpleDataSource();
+            dataSource.setUrl(container.getJdbcUrl());
+            dataSource.setUser(container.getUsername());
+            dataSource.setPassword(container.getPassword());
+            config.serverProfile.applyRuntimeProperties(dataSource, config.configProperties);
+
+            admissionController = new ConnectionAdmissionController(Integer.parseInt(serverProperties.get("max_connections")));
         }
 
         private PostgreSQLContainer createContainer(String dockerImage, Consumer<PostgreSQLContainer> configAction) {
@@ -203,47 +220,30 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
             String databaseName = RandomStringUtils.randomAlphabetic(12).toLowerCase(Locale.ENGLISH);
 
             if (template != null) {
-                executeStatement(config, String.format("CREATE DATABASE %s TEMPLATE %s OWNER %s ENCODING 'utf8'", databaseName, template.getTemplateName(), "postgres"));
+                adminDatabase.execute(config, String.format("CREATE DATABASE %s TEMPLATE %s OWNER %s ENCODING 'utf8'", databaseName, template.getTemplateName(), "postgres"));
             } else {
-                executeStatement(config, String.format("CREATE DATABASE %s OWNER %s ENCODING 'utf8'", databaseName, "postgres"));
+                adminDatabase.execute(config, String.format("CREATE DATABASE %s OWNER %s ENCODING 'utf8'", databaseName, "postgres"));
             }
 
+            BlockingDatabaseWrapper database = null;
             try {
-                EmbeddedDatabase database = getDatabase(config, databaseName);
+                database = getDatabase(config, databaseName, config.maxIdleConnections);
                 if (preparer != null) {
                     preparer.prepare(database);
                 }
+                // the database may wait in the prefetching queue or be used as a template, so it must not hold any connections
+                database.evictIdleConnections();
                 return database;
             } catch (Exception e) {
-                dropDatabase(config, databaseName);
-                throw e;
-            }
-        }
-
-        private void dropDatabase(ClientConfig config, String dbName) {
-            CompletableFuture.runAsync(() -> {
-                try {
-                    executeStatement(config, String.format("DROP DATABASE IF EXISTS %s", dbName));
-                } catch (SQLException e) {
-                    if ("55006".equals(e.getSQLState())) { // postgres error code for object_in_use condition
-                        if (logger.isTraceEnabled()) {
-                            logger.warn("Unable to release '{}' database", dbName, e);
-                        } else {
-                            logger.warn("Unable to release '{}' database", dbName);
-                        }
-                    }
+                if (database != null) {
+                    database.evictIdleConnections();
                 }
-            });
-        }
-
-        private void executeStatement(ClientConfig config, String ddlStatement) throws SQLException {
-            DataSource dataSource = getDatabase(config, "postgres");
-            try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(ddlStatement)) {
-                stmt.execute();
+                adminDatabase.dropDatabase(config, databaseName);
+                throw e;
             }
         }
 
-        private EmbeddedDatabase getDatabase(ClientConfig config, String dbName) throws SQLException {
+        private BlockingDatabaseWrapper getDatabase(ClientConfig config, String dbName, int maxIdleConnections) throws SQLException {
             PGSimpleDataSource dataSource = new PGSimpleDataSource();
 
             dataSource.setServerName(container.getContainerIpAddress());
@@ -257,7 +257,7 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
                 dataSource.setProperty(entry.getKey(), entry.getValue());
             }
 
-            return new BlockingDatabaseWrapper(new PostgresEmbeddedDatabase(dataSource, () -> dropDatabase(config, dbName)), semaphore);
+            return new BlockingDatabaseWrapper(new PostgresEmbeddedDatabase(dataSource, () -> adminDatabase.dropDatabase(config, dbName)), admissionController.forDatabase(), maxIdleConnections, "DISCARD ALL", config.leakDetection);
         }
     }
 
@@ -268,14 +268,16 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
         private final boolean tmpfsEnabled;
         private final Map<String, String> initdbProperties;
         private final Map<String, String> configProperties;
+        private final PostgresServerProfile serverProfile;
         private final List<PostgreSQLContainerCustomizer> customizers;
 
-        private DatabaseConfig(String dockerImage, String tmpfsOptions, boolean tmpfsEnabled, Map<String, String> initdbProperties, Map<String, String> configProperties, List<PostgreSQLContainerCustomizer> customizers) {
+        private DatabaseConfig(String dockerImage, String tmpfsOptions, boolean tmpfsEnabled, Map<String, String> initdbProperties, Map<String, String> configProperties, PostgresServerProfile serverProfile, List<PostgreSQLContainerCustomizer> customizers) {
             this.dockerImage = dockerImage;
             this.tmpfsOptions = tmpfsOptions;
             this.tmpfsEnabled = tmpfsEnabled;
             this.initdbProperties = ImmutableMap.copyOf(initdbProperties);
             this.configProperties = ImmutableMap.copyOf(configProperties);
+            this.serverProfile = serverProfile;
             this.customizers = customizers;
         }
 
@@ -289,12 +291,13 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
                     Objects.equals(tmpfsOptions, that.tmpfsOptions) &&
                     Objects.equals(initdbProperties, that.initdbProperties) &&
                     Objects.equals(configProperties, that.configProperties) &&
+                    Objects.equals(serverProfile, that.serverProfile) &&
                     DeepEquals.deepEquals(customizers, that.customizers);
         }
 
         @Override
         public int hashCode() {
-            int result = Objects.hash(dockerImage, tmpfsOptions, tmpfsEnabled, initdbProperties, configProperties);
+            int result = Objects.hash(dockerImage, tmpfsOptions, tmpfsEnabled, initdbProperties, configProperties, serverProfile);
             result = 31 * result + DeepEquals.deepHashCode(customizers);
             return result;
         }
@@ -303,9 +306,13 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
     private static class ClientConfig {
 
         private final Map<String, String> connectProperties;
+        private final int maxIdleConnections;
+        private final boolean leakDetection;
 
-        private ClientConfig(Map<String, String> connectProperties) {
+        private ClientConfig(Map<String, String> connectProperties, int maxIdleConnections, boolean leakDetection) {
             this.connectProperties = ImmutableMap.copyOf(connectProperties);
+            this.maxIdleConnections = maxIdleConnections;
+            this.leakDetection = leakDetection;
         }
 
         @Override
@@ -313,12 +320,14 @@ public class DockerPostgresDatabaseProvider implements TemplatableDatabaseProvid
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             ClientConfig that = (ClientConfig) o;
-            return Objects.equals(connectProperties, that.connectProperties);
+            return maxIdleConnections == that.maxIdleConnections &&
+                    leakDetection == that.leakDetection &&
+                    Objects.equals(connectProperties, that.connectProperties);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(connectProperties);
+            return Objects.hash(connectProperties, maxIdleConnections, leakDetection);
         }
     }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.postgres;
+
+import io.zonky.test.db.provider.support.AdminDatabase;
+import io.zonky.test.db.provider.support.AdminDatabase.DataSourceFactory;
+
+import java.util.function.Predicate;
+
+/**
+ * Admin database shared by the postgres providers, connected to the maintenance "postgres" database.
+ */
+final class PostgresAdminDatabase {
+
+    private PostgresAdminDatabase() {
+    }
+
+    /**
+     * @param dataSourceFactory factory of data sources connected to the maintenance database
+     * @param leakDetection whether sessions left open in a database should be terminated before it is dropped
+     */
+    static <C> AdminDatabase<C> create(DataSourceFactory<C> dataSourceFactory, Predicate<C> leakDetection) {
+        return new AdminDatabase<>(dataSourceFactory, (statement, config, databaseName) -> {
+            if (leakDetection.test(config)) {
+                // terminates backends opened by leaked connections or by clients that bypassed the data source
+                statement.execute(String.format("SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE datname = '%s' AND pid <> pg_backend_pid()", databaseName));
+            }
+            statement.execute(String.format("DROP DATABASE IF EXISTS %s", databaseName));
+        }, e -> "55006".equals(e.getSQLState())); // retried while the database is in use (object_in_use condition)
+    }
+}
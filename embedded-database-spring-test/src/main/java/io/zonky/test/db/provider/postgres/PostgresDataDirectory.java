@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.postgres;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+
+/**
+ * Placement of data directories of embedded postgres clusters in a RAM-backed file system.
+ * <p>
+ * A cluster is placed in the RAM-backed file system only if there is enough space for the cluster itself
+ * and for all databases that can be prepared in advance, otherwise the default location on disk is used.
+ */
+final class PostgresDataDirectory {
+
+    private static final Logger logger = LoggerFactory.getLogger(PostgresDataDirectory.class);
+
+    private static final long MB = 1024 * 1024;
+
+    // rough estimates of the size of a fresh cluster and of an empty database
+    private static final long CLUSTER_SIZE = 64 * MB;
+    private static final long DATABASE_SIZE = 16 * MB;
+
+    private static final PostgresDataDirectory DISK = new PostgresDataDirectory(false, null, 0, 0);
+
+    private final boolean ramDiskEnabled;
+    private final String ramDiskPath;
+    private final long minFreeSpace;
+    private final int maxPreparedDatabases;
+
+    private PostgresDataDirectory(boolean ramDiskEnabled, String ramDiskPath, long minFreeSpace, int maxPreparedDatabases) {
+        this.ramDiskEnabled = ramDiskEnabled;
+        this.ramDiskPath = ramDiskPath;
+        this.minFreeSpace = minFreeSpace;
+        this.maxPreparedDatabases = maxPreparedDatabases;
+    }
+
+    public static PostgresDataDirectory of(Environment environment) {
+        boolean enabled = environment.getProperty("zonky.test.database.postgres.ram-disk.enabled", boolean.class, false);
+        if (!enabled) {
+            return DISK;
+        }
+
+        String path = environment.getProperty("zonky.test.database.postgres.ram-disk.path", "/dev/shm");
+        long minFreeSpace = environment.getProperty("zonky.test.database.postgres.ram-disk.min-free-space", long.class, 256L) * MB;
+        int maxPreparedDatabases = environment.getProperty("zonky.test.database.prefetching.max-prepared-templates", int.class, 10)
+                + environment.getProperty("zonky.test.database.prefetching.pipeline-cache-size", int.class, 5);
+
+        return new PostgresDataDirectory(true, path, minFreeSpace, maxPreparedDatabases);
+    }
+
+    public static PostgresDataDirectory disk() {
+        return DISK;
+    }
+
+    public boolean isRamDiskEnabled() {
+        return ramDiskEnabled;
+    }
+
+    /**
+     * Creates a new data directory in the RAM-backed file system,
+     * or returns null if the default location on disk should be used.
+     */
+    public File allocate() {
+        if (!ramDiskEnabled) {
+            return null;
+        }
+
+        Path root = Paths.get(ramDiskPath);
+        long requiredSpace = minFreeSpace + CLUSTER_SIZE + maxPreparedDatabases * DATABASE_SIZE;
+        try {
+            long usableSpace = Files.getFileStore(root).getUsableSpace();
+            if (usableSpace < requiredSpace) {
+                logger.info("Not enough space in {} ({} MB available, {} MB required), the database cluster will be placed on disk",
+                        root, usableSpace / MB, requiredSpace / MB);
+                return null;
+            }
+
+            return Files.createTempDirectory(root, "zonky-pg-").toFile();
+        } catch (IOException e) {
+            logger.info("RAM disk {} is not available, the database cluster will be placed on disk", root, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether new databases can still be created in the given data directory.
+     */
+    public boolean hasCapacity(File directory) {
+        if (directory == null) {
+            return true;
+        }
+        return directory.getUsableSpace() >= minFreeSpace;
+    }
+
+    public static void release(File directory) {
+        if (directory != null) {
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PostgresDataDirectory that = (PostgresDataDirectory) o;
+        return ramDiskEnabled == that.ramDiskEnabled &&
+                minFreeSpace == that.minFreeSpace &&
+                maxPreparedDatabases == that.maxPreparedDatabases &&
+                Objects.equals(ramDiskPath, that.ramDiskPath);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ramDiskEnabled, ramDiskPath, minFreeSpace, maxPreparedDatabases);
+    }
+}
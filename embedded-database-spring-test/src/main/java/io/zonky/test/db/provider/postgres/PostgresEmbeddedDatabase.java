@@ -38,7 +38,11 @@ public class PostgresEmbeddedDatabase extends AbstractEmbeddedDatabase {
 
     @Override
     public String getJdbcUrl() {
-        String url = dataSource.getUrl() + String.format("?user=%s", dataSource.getUser());
+        // connections through a unix socket are reported as plain tcp connections, which is what external tools can use
+        String url = dataSource.getUrl()
+                .replaceAll("(?<=[?&])socketFactory(Arg)?=[^&]*&?", "")
+                .replaceAll("[?&]$", "");
+        url += String.format("%suser=%s", url.contains("?") ? "&" : "?", dataSource.getUser());
         if (StringUtils.hasText(dataSource.getPassword())) {
             url += String.format("&password=%s", dataSource.getPassword());
         }
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.postgres;
+
+import io.zonky.test.db.util.RandomStringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of pristine data directories of embedded postgres clusters.
+ * <p>
+ * The result of initdb depends only on the initdb options and on the postgres binaries,
+ * so it is created once per configuration, stored in the build directory and reused by all subsequent clusters
+ * and test runs. New clusters get a copy of the cached directory, which is cloned copy-on-write where the file system supports it.
+ */
+final class PostgresInitdbCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PostgresInitdbCache.class);
+
+    private static final PostgresInitdbCache DISABLED = new PostgresInitdbCache(null);
+
+    private static final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    private final String cacheDirectory;
+
+    private PostgresInitdbCache(String cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public static PostgresInitdbCache of(Environment environment) {
+        boolean enabled = environment.getProperty("zonky.test.database.postgres.initdb-cache.enabled", boolean.class, true);
+        if (!enabled) {
+            return DISABLED;
+        }
+        return new PostgresInitdbCache(environment.getProperty("zonky.test.database.postgres.initdb-cache.directory", defaultCacheDirectory()));
+    }
+
+    private static String defaultCacheDirectory() {
+        for (String buildDirectory : new String[] { "build", "target" }) {
+            File directory = new File(System.getProperty("user.dir"), buildDirectory);
+            if (directory.isDirectory()) {
+                return new File(directory, "embedded-postgres").getAbsolutePath();
+            }
+        }
+        return new File(System.getProperty("java.io.tmpdir"), "embedded-postgres").getAbsolutePath();
+    }
+
+    public boolean isEnabled() {
+        return cacheDirectory != null;
+    }
+
+    /**
+     * Returns a pristine data directory for the given configuration, the directory is initialized by the given initializer on a cache miss.
+     */
+    public File getDataDirectory(String flavor, Map<String, String> initdbProperties, Initializer initializer) throws IOException {
+        String key = cacheKey(flavor, initdbProperties);
+        Path directory = Paths.get(cacheDirectory, key);
+
+        synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+            if (isInitialized(directory)) {
+                return directory.toFile();
+            }
+
+            Files.createDirectories(directory.getParent());
+            Path temporaryDirectory = directory.resolveSibling(key + "-" + RandomStringUtils.randomAlphabetic(8).toLowerCase(Locale.ENGLISH));
+            try {
+                logger.info("Initializing a cached data directory {}", directory);
+                Files.createDirectory(temporaryDirectory);
+                initializer.initialize(temporaryDirectory.toFile());
+                Files.deleteIfExists(temporaryDirectory.resolve("postmaster.pid"));
+                Files.deleteIfExists(temporaryDirectory.resolve("epg-lock"));
+
+                // another process may be initializing the same directory concurrently, the first one wins
+                Files.move(temporaryDirectory, directory, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                logger.trace("Data directory {} has been initialized by another process", directory);
+            } finally {
+                FileSystemUtils.deleteRecursively(temporaryDirectory.toFile());
+            }
+            return directory.toFile();
+        }
+    }
+
+    /**
+     * Removes a cached data directory that could not be used, for example because the postgres binaries have been changed.
+     */
+    public void evict(File directory) {
+        Path staleDirectory = directory.toPath().resolveSibling(directory.getName() + "-stale-" + RandomStringUtils.randomAlphabetic(8).toLowerCase(Locale.ENGLISH));
+        try {
+            Files.move(directory.toPath(), staleDirectory, StandardCopyOption.ATOMIC_MOVE);
+            FileSystemUtils.deleteRecursively(staleDirectory.toFile());
+        } catch (IOException e) {
+            logger.trace("Data directory {} has already been evicted", directory, e);
+        }
+    }
+
+    /**
+     * Copies the cached data directory into an empty target directory.
+     */
+    public static void copy(File source, File target) throws IOException {
+        if (cloneDirectory(source, target)) {
+            return;
+        }
+
+        Path sourcePath = source.toPath();
+        Path targetPath = target.toPath();
+        Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path directory = targetPath.resolve(sourcePath.relativize(dir).toString());
+                if (!Files.exists(directory)) {
+                    Files.copy(dir, directory, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, targetPath.resolve(sourcePath.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // copy-on-write clones are not available in java, so the system cp is used where it supports them
+    private static boolean cloneDirectory(File source, File target) {
+        String osName = System.getProperty("os.name").toLowerCase(Locale.ENGLISH);
+        String cloneOption;
+        if (osName.startsWith("linux")) {
+            cloneOption = "--reflink=auto";
+        } else if (osName.startsWith("mac")) {
+            cloneOption = "-c";
+        } else {
+            return false;
+        }
+
+        try {
+            Process process = new ProcessBuilder("cp", "-Rp", cloneOption, source.getPath() + "/.", target.getPath())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null")))
+                    .start();
+            if (process.waitFor() == 0) {
+                return true;
+            }
+        } catch (IOException e) {
+            logger.trace("Copying data directory using cp failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // remove partially copied files before the fallback copy
+        File[] files = target.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                FileSystemUtils.deleteRecursively(file);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInitialized(Path directory) {
+        return Files.isRegularFile(directory.resolve("PG_VERSION")) && Files.isRegularFile(directory.resolve("postgresql.conf"));
+    }
+
+    private static String cacheKey(String flavor, Map<String, String> initdbProperties) {
+        String source = flavor + new TreeMap<>(initdbProperties);
+        return flavor + "-" + DigestUtils.md5DigestAsHex(source.getBytes(StandardCharsets.UTF_8)).substring(0, 16);
+    }
+
+    @FunctionalInterface
+    public interface Initializer {
+
+        void initialize(File dataDirectory) throws IOException;
+
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PostgresInitdbCache that = (PostgresInitdbCache) o;
+        return Objects.equals(cacheDirectory, that.cacheDirectory);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(cacheDirectory);
+    }
+}
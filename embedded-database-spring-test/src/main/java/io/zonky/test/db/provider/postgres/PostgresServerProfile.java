@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.postgres;
+
+import com.google.common.collect.ImmutableMap;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Server settings shared by all postgres providers.
+ * <p>
+ * The {@code throwaway} profile trades durability for speed, which is safe because the embedded clusters
+ * never outlive the tests. Settings that are not recognized by all supported versions of PostgreSQL
+ * are applied only after the server is started and only if the server supports them.
+ */
+final class PostgresServerProfile {
+
+    private static final String THROWAWAY = "throwaway";
+    private static final String NONE = "none";
+
+    private static final long MB = 1024 * 1024;
+
+    private final String name;
+
+    private PostgresServerProfile(String name) {
+        this.name = name;
+    }
+
+    public static PostgresServerProfile of(Environment environment) {
+        String name = environment.getProperty("zonky.test.database.postgres.server.profile", THROWAWAY).toLowerCase(Locale.ENGLISH);
+        if (!THROWAWAY.equals(name) && !NONE.equals(name)) {
+            throw new IllegalArgumentException("Unknown postgres server profile: " + name + ", supported values are: throwaway, none");
+        }
+        return new PostgresServerProfile(name);
+    }
+
+    /**
+     * Returns server properties passed to the server at startup, explicitly configured properties take precedence.
+     */
+    public Map<String, String> serverProperties(Map<String, String> configProperties) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        if (THROWAWAY.equals(name)) {
+            long memory = totalPhysicalMemory();
+
+            properties.put("fsync", "off");
+            properties.put("synchronous_commit", "off");
+            properties.put("full_page_writes", "off");
+            properties.put("checkpoint_timeout", "1h");
+            // the autovacuum launcher visits each database once per naptime, which is wasted work for short-lived databases
+            properties.put("autovacuum_naptime", "10min");
+            properties.put("autovacuum_max_workers", "1");
+            properties.put("max_connections", String.valueOf(clamp(memory / (16 * MB), 100, 500)));
+            properties.put("shared_buffers", clamp(memory / (32 * MB), 128, 1024) + "MB");
+        } else {
+            properties.put("max_connections", "300");
+        }
+        properties.putAll(configProperties);
+        return ImmutableMap.copyOf(properties);
+    }
+
+    /**
+     * Applies the version dependent settings to a running server.
+     */
+    public void applyRuntimeProperties(DataSource dataSource, Map<String, String> configProperties) {
+        if (!THROWAWAY.equals(name)) {
+            return;
+        }
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        int version = jdbcTemplate.queryForObject("show server_version_num", Integer.class);
+
+        Map<String, String> properties = new LinkedHashMap<>();
+        if (version >= 90500) {
+            properties.put("max_wal_size", "4GB");
+        }
+        if (version >= 110000) {
+            properties.put("jit", "off");
+        }
+        properties.keySet().removeAll(configProperties.keySet());
+
+        if (!properties.isEmpty()) {
+            properties.forEach((key, value) -> jdbcTemplate.execute(String.format("ALTER SYSTEM SET %s = '%s'", key, value)));
+            jdbcTemplate.execute("SELECT pg_reload_conf()");
+        }
+    }
+
+    private static long totalPhysicalMemory() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getTotalPhysicalMemorySize();
+        }
+        return 4096 * MB;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PostgresServerProfile that = (PostgresServerProfile) o;
+        return Objects.equals(name, that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name);
+    }
+}
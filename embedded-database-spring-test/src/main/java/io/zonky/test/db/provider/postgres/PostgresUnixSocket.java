@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.postgres;
+
+import org.postgresql.ds.PGSimpleDataSource;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.ClassUtils;
+
+import java.io.File;
+import java.util.Objects;
+
+/**
+ * Connections to embedded postgres clusters through the unix socket of the cluster instead of the loopback tcp interface.
+ * <p>
+ * Java 8 does not support unix domain sockets, so the connections are opened by an external socket factory,
+ * by default the one provided by the junixsocket library.
+ */
+final class PostgresUnixSocket {
+
+    private static final String JUNIXSOCKET_FACTORY = "org.newsclub.net.unix.AFUNIXSocketFactory$FactoryArg";
+
+    private static final PostgresUnixSocket DISABLED = new PostgresUnixSocket(null);
+
+    private final String socketFactory;
+
+    private PostgresUnixSocket(String socketFactory) {
+        this.socketFactory = socketFactory;
+    }
+
+    public static PostgresUnixSocket of(Environment environment) {
+        boolean enabled = environment.getProperty("zonky.test.database.postgres.client.unix-socket.enabled", boolean.class, false);
+        if (!enabled) {
+            return DISABLED;
+        }
+
+        String socketFactory = environment.getProperty("zonky.test.database.postgres.client.unix-socket.factory", JUNIXSOCKET_FACTORY);
+        if (!ClassUtils.isPresent(socketFactory, PostgresUnixSocket.class.getClassLoader())) {
+            throw new IllegalStateException("Socket factory " + socketFactory + " not found, " +
+                    "add the com.kohlschutter.junixsocket:junixsocket-core dependency or configure another socket factory");
+        }
+        return new PostgresUnixSocket(socketFactory);
+    }
+
+    /**
+     * Returns the path of the unix socket the server listens on, or null if the server does not listen on any unix socket.
+     */
+    public static String socketPath(JdbcTemplate jdbcTemplate, int port) {
+        String directories = jdbcTemplate.queryForObject("show unix_socket_directories", String.class);
+        for (String directory : directories.split(",")) {
+            directory = directory.trim();
+            // sockets in the abstract namespace are not backed by a file
+            if (!directory.isEmpty() && !directory.startsWith("@")) {
+                return new File(directory, ".s.PGSQL." + port).getPath();
+            }
+        }
+        return null;
+    }
+
+    public void applyTo(PGSimpleDataSource dataSource, String socketPath) {
+        if (socketFactory == null) {
+            return;
+        }
+        if (socketPath == null) {
+            throw new IllegalStateException("The database server does not listen on any unix socket, check the unix_socket_directories server property");
+        }
+        dataSource.setSocketFactory(socketFactory);
+        dataSource.setSocketFactoryArg(socketPath);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PostgresUnixSocket that = (PostgresUnixSocket) o;
+        return Objects.equals(socketFactory, that.socketFactory);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(socketFactory);
+    }
+}
@@ -30,31 +30,27 @@ import io.zonky.test.db.provider.DatabaseTemplate;
 import io.zonky.test.db.provider.EmbeddedDatabase;
 import io.zonky.test.db.provider.ProviderException;
 import io.zonky.test.db.provider.TemplatableDatabaseProvider;
+import io.zonky.test.db.provider.support.AdminDatabase;
 import io.zonky.test.db.provider.support.BlockingDatabaseWrapper;
+import io.zonky.test.db.provider.support.ConnectionAdmissionController;
 import io.zonky.test.db.provider.support.SimpleDatabaseTemplate;
 import io.zonky.test.db.util.PropertyUtils;
 import io.zonky.test.db.util.RandomStringUtils;
 import org.postgresql.ds.PGSimpleDataSource;
 import org.postgresql.ds.common.BaseDataSource;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.core.env.Environment;
 import ru.yandex.qatools.embed.postgresql.EmbeddedPostgres;
 import ru.yandex.qatools.embed.postgresql.util.SocketUtil;
 
-import javax.sql.DataSource;
+import java.io.File;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -64,7 +60,7 @@ import static ru.yandex.qatools.embed.postgresql.EmbeddedPostgres.defaultRuntime
 
 public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvider {
 
-    private static final Logger logger = LoggerFactory.getLogger(YandexPostgresDatabaseProvider.class);
+    private static final int MAX_IDLE_ADMIN_CONNECTIONS = 3;
 
     private static final String POSTGRES_USERNAME = "postgres";
     private static final String POSTGRES_PASSWORD = "yandex";
@@ -84,10 +80,14 @@ public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvid
 
         Map<String, String> initdbProperties = PropertyUtils.extractAll(environment, "zonky.test.database.postgres.initdb.properties");
         Map<String, String> configProperties = PropertyUtils.extractAll(environment, "zonky.test.database.postgres.server.properties");
+        PostgresServerProfile serverProfile = PostgresServerProfile.of(environment);
+        PostgresDataDirectory dataDirectory = PostgresDataDirectory.of(environment);
         Map<String, String> connectProperties = PropertyUtils.extractAll(environment, "zonky.test.database.postgres.client.properties");
+        int maxIdleConnections = environment.getProperty("zonky.test.database.connection-pool.max-idle", int.class, 0);
+        boolean leakDetection = environment.getProperty("zonky.test.database.leak-detection.enabled", boolean.class, false);
 
-        this.databaseConfig = new DatabaseConfig(new GenericVersion(postgresVersion), initdbProperties, configProperties);
-        this.clientConfig = new ClientConfig(connectProperties);
+        this.databaseConfig = new DatabaseConfig(new GenericVersion(postgresVersion), initdbProperties, configProperties, serverProfile, dataDirectory);
+        this.clientConfig = new ClientConfig(connectProperties, maxIdleConnections, leakDetection);
     }
 
     @Override
@@ -101,6 +101,16 @@ public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvid
         }
     }
 
+    @Override
+    public void warmUp() throws ProviderException {
+        try {
+            databases.get(databaseConfig);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), ProviderException.class);
+            throw new ProviderException("Unexpected error when preparing a database cluster", e.getCause());
+        }
+    }
+
     @Override
     public EmbeddedDatabase createDatabase(DatabaseRequest request) throws ProviderException {
         try {
@@ -131,7 +141,10 @@ public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvid
     protected static class DatabaseInstance {
 
         private final EmbeddedPostgres postgres;
-        private final Semaphore semaphore;
+        private final ConnectionAdmissionController admissionController;
+        // warm connections to the maintenance database save a backend startup for every create and drop statement
+        private final AdminDatabase<ClientConfig> adminDatabase = PostgresAdminDatabase.create(
+                config -> getDatabase(config, "postgres", MAX_IDLE_ADMIN_CONNECTIONS), config -> config.leakDetection);
 
         private DatabaseInstance(DatabaseConfig config) throws IOException {
             Map<String, String> initdbProperties = new HashMap<>(config.initdbProperties);
@@ -141,20 +154,37 @@ public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvid
                     .map(e -> String.format("--%s=%s", e.getKey(), e.getValue()))
                     .collect(Collectors.toList());
 
-            Map<String, String> serverProperties = new HashMap<>(config.configProperties);
-            serverProperties.putIfAbsent("max_connections", "300");
+            Map<String, String> serverProperties = config.serverProfile.serverProperties(config.configProperties);
 
             List<String> postgresParams = serverProperties.entrySet().stream()
                     .flatMap(e -> Stream.of("-c", String.format("%s=%s", e.getKey(), e.getValue())))
                     .collect(Collectors.toList());
 
-            postgres = new EmbeddedPostgres(config.version);
-            postgres.start(defaultRuntimeConfig(), DEFAULT_HOST, SocketUtil.findFreePort(),
-                    DEFAULT_DB_NAME, POSTGRES_USERNAME, POSTGRES_PASSWORD, initdbParams, postgresParams);
+            File dataDirectory = config.dataDirectory.allocate();
+            postgres = dataDirectory != null ? new EmbeddedPostgres(config.version, dataDirectory.getAbsolutePath()) : new EmbeddedPostgres(config.version);
+            try {
+                postgres.start(defaultRuntimeConfig(), DEFAULT_HOST, SocketUtil.findFreePort(),
+                        DEFAULT_DB_NAME, POSTGRES_USERNAME, POSTGRES_PASSWORD, initdbParams, postgresParams);
+            } catch (IOException | RuntimeException e) {
+                PostgresDataDirectory.release(dataDirectory);
+                throw e;
+            }
 
-            Runtime.getRuntime().addShutdownHook(new Thread(postgres::close));
+            // explicitly provided data directories are not deleted by the embedded postgres
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                postgres.close();
+                PostgresDataDirectory.release(dataDirectory);
+            }));
 
-            semaphore = new Semaphore(Integer.parseInt(serverProperties.get("max_connections")));
+            PGSimpleDataSource dataSource = new PGSimpleDataSource();
+            dataSource.setServerName(DEFAULT_HOST);
+            dataSource.setPortNumber(postgres.getConfig().map(cfg -> cfg.net().port()).orElse(-1));
+            dataSource.setDatabaseName(DEFAULT_DB_NAME);
+            dataSource.setUser(POSTGRES_USERNAME);
+            dataSource.setPassword(POSTGRES_PASSWORD);
+            config.serverProfile.applyRuntimeProperties(dataSource, config.configProperties);
+
+            admissionController = new ConnectionAdmissionController(Integer.parseInt(serverProperties.get("max_connections")));
         }
 
         public EmbeddedDatabase createDatabase(ClientConfig config, DatabaseRequest request) throws SQLException {
@@ -164,47 +194,30 @@ public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvid
             String databaseName = RandomStringUtils.randomAlphabetic(12).toLowerCase(Locale.ENGLISH);
 
             if (template != null) {
-                executeStatement(config, String.format("CREATE DATABASE %s TEMPLATE %s OWNER %s ENCODING 'utf8'", databaseName, template.getTemplateName(), "postgres"));
+                adminDatabase.execute(config, String.format("CREATE DATABASE %s TEMPLATE %s OWNER %s ENCODING 'utf8'", databaseName, template.getTemplateName(), "postgres"));
             } else {
-                executeStatement(config, String.format("CREATE DATABASE %s OWNER %s ENCODING 'utf8'", databaseName, "postgres"));
+                adminDatabase.execute(config, String.format("CREATE DATABASE %s OWNER %s ENCODING 'utf8'", databaseName, "postgres"));
             }
 
+            BlockingDatabaseWrapper database = null;
             try {
-                EmbeddedDatabase database = getDatabase(config, databaseName);
+                database = getDatabase(config, databaseName, config.maxIdleConnections);
                 if (preparer != null) {
                     preparer.prepare(database);
                 }
+                // the database may wait in the prefetching queue or be used as a template, so it must not hold any connections
+                database.evictIdleConnections();
                 return database;
             } catch (Exception e) {
-                dropDatabase(config, databaseName);
-                throw e;
-            }
-        }
-
-        private void dropDatabase(ClientConfig config, String dbName) {
-            CompletableFuture.runAsync(() -> {
-                try {
-                    executeStatement(config, String.format("DROP DATABASE IF EXISTS %s", dbName));
-                } catch (SQLException e) {
-                    if ("55006".equals(e.getSQLState())) { // postgres error code for object_in_use condition
-                        if (logger.isTraceEnabled()) {
-                            logger.warn("Unable to release '{}' database", dbName, e);
-                        } else {
-                            logger.warn("Unable to release '{}' database", dbName);
-                        }
-                    }
+                if (database != null) {
+                    database.evictIdleConnections();
                 }
-            });
-        }
-
-        private void executeStatement(ClientConfig config, String ddlStatement) throws SQLException {
-            DataSource dataSource = getDatabase(config, "postgres");
-            try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(ddlStatement)) {
-                stmt.execute();
+                adminDatabase.dropDatabase(config, databaseName);
+                throw e;
             }
         }
 
-        private EmbeddedDatabase getDatabase(ClientConfig config, String dbName) throws SQLException {
+        private BlockingDatabaseWrapper getDatabase(ClientConfig config, String dbName, int maxIdleConnections) throws SQLException {
             PGSimpleDataSource dataSource = new PGSimpleDataSource();
 
             dataSource.setServerName(DEFAULT_HOST);
@@ -218,7 +231,7 @@ public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvid
                 dataSource.setProperty(entry.getKey(), entry.getValue());
             }
 
-            return new BlockingDatabaseWrapper(new PostgresEmbeddedDatabase(dataSource, () -> dropDatabase(config, dbName)), semaphore);
+            return new BlockingDatabaseWrapper(new PostgresEmbeddedDatabase(dataSource, () -> adminDatabase.dropDatabase(config, dbName)), admissionController.forDatabase(), maxIdleConnections, "DISCARD ALL", config.leakDetection);
         }
     }
 
@@ -227,11 +240,15 @@ public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvid
         private final IVersion version;
         private final Map<String, String> initdbProperties;
         private final Map<String, String> configProperties;
+        private final PostgresServerProfile serverProfile;
+        private final PostgresDataDirectory dataDirectory;
 
-        private DatabaseConfig(IVersion version, Map<String, String> initdbProperties, Map<String, String> configProperties) {
+        private DatabaseConfig(IVersion version, Map<String, String> initdbProperties, Map<String, String> configProperties, PostgresServerProfile serverProfile, PostgresDataDirectory dataDirectory) {
             this.version = version;
             this.initdbProperties = ImmutableMap.copyOf(initdbProperties);
             this.configProperties = ImmutableMap.copyOf(configProperties);
+            this.serverProfile = serverProfile;
+            this.dataDirectory = dataDirectory;
         }
 
         @Override
@@ -241,21 +258,27 @@ public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvid
             DatabaseConfig that = (DatabaseConfig) o;
             return Objects.equals(version, that.version) &&
                     Objects.equals(initdbProperties, that.initdbProperties) &&
-                    Objects.equals(configProperties, that.configProperties);
+                    Objects.equals(configProperties, that.configProperties) &&
+                    Objects.equals(serverProfile, that.serverProfile) &&
+                    Objects.equals(dataDirectory, that.dataDirectory);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(version, initdbProperties, configProperties);
+            return Objects.hash(version, initdbProperties, configProperties, serverProfile, dataDirectory);
         }
     }
 
     private static class ClientConfig {
 
         private final Map<String, String> connectProperties;
+        private final int maxIdleConnections;
+        private final boolean leakDetection;
 
-        private ClientConfig(Map<String, String> connectProperties) {
+        private ClientConfig(Map<String, String> connectProperties, int maxIdleConnections, boolean leakDetection) {
             this.connectProperties = ImmutableMap.copyOf(connectProperties);
+            this.maxIdleConnections = maxIdleConnections;
+            this.leakDetection = leakDetection;
         }
 
         @Override
@@ -263,12 +286,14 @@ public class YandexPostgresDatabaseProvider implements TemplatableDatabaseProvid
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             ClientConfig that = (ClientConfig) o;
-            return Objects.equals(connectProperties, that.connectProperties);
+            return maxIdleConnections == that.maxIdleConnections &&
+                    leakDetection == that.leakDetection &&
+                    Objects.equals(connectProperties, that.connectProperties);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(connectProperties);
+            return Objects.hash(connectProperties, maxIdleConnections, leakDetection);
         }
     }
 }
@@ -30,7 +30,10 @@ import io.zonky.test.db.provider.DatabaseTemplate;
 import io.zonky.test.db.provider.EmbeddedDatabase;
 import io.zonky.test.db.provider.ProviderException;
 import io.zonky.test.db.provider.TemplatableDatabaseProvider;
+import io.zonky.test.db.provider.support.AdminDatabase;
 import io.zonky.test.db.provider.support.BlockingDatabaseWrapper;
+import io.zonky.test.db.provider.support.ConnectionAdmissionController;
+import io.zonky.test.db.provider.support.ShardedDatabaseTemplate;
 import io.zonky.test.db.provider.support.SimpleDatabaseTemplate;
 import io.zonky.test.db.util.PropertyUtils;
 import io.zonky.test.db.util.RandomStringUtils;
@@ -43,31 +46,36 @@ import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.core.env.Environment;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.util.ClassUtils;
+import org.springframework.util.FileSystemUtils;
 
 import javax.sql.DataSource;
+import java.io.File;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.nio.file.Files;
 import java.sql.SQLException;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 import static io.zonky.test.db.util.ReflectionUtils.getField;
 import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
 
 public class ZonkyPostgresDatabaseProvider implements TemplatableDatabaseProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(ZonkyPostgresDatabaseProvider.class);
 
+    private static final int MAX_IDLE_ADMIN_CONNECTIONS = 3;
+
     private static final LoadingCache<DatabaseConfig, DatabaseInstance> databases = CacheBuilder.newBuilder()
             .build(new CacheLoader<DatabaseConfig, DatabaseInstance>() {
                 public DatabaseInstance load(DatabaseConfig config) throws IOException {
@@ -75,24 +83,61 @@ public class ZonkyPostgresDatabaseProvider implements TemplatableDatabaseProvide
                 }
             });
 
-    private final DatabaseConfig databaseConfig;
+    private final List<DatabaseConfig> databaseConfigs;
+    private final List<DatabaseConfig> fallbackConfigs;
     private final ClientConfig clientConfig;
 
     public ZonkyPostgresDatabaseProvider(Environment environment, ObjectProvider<List<Consumer<EmbeddedPostgres.Builder>>> databaseCustomizers) {
         Map<String, String> initdbProperties = PropertyUtils.extractAll(environment, "zonky.test.database.postgres.initdb.properties");
         Map<String, String> configProperties = PropertyUtils.extractAll(environment, "zonky.test.database.postgres.server.properties");
+        PostgresServerProfile serverProfile = PostgresServerProfile.of(environment);
+        PostgresDataDirectory dataDirectory = PostgresDataDirectory.of(environment);
+        PostgresInitdbCache initdbCache = PostgresInitdbCache.of(environment);
         Map<String, String> connectProperties = PropertyUtils.extractAll(environment, "zonky.test.database.postgres.client.properties");
+        PostgresUnixSocket unixSocket = PostgresUnixSocket.of(environment);
+        int maxIdleConnections = environment.getProperty("zonky.test.database.connection-pool.max-idle", int.class, 0);
+        boolean leakDetection = environment.getProperty("zonky.test.database.leak-detection.enabled", boolean.class, false);
+        int shards = environment.getProperty("zonky.test.database.postgres.shards", int.class, 1);
 
         List<Consumer<EmbeddedPostgres.Builder>> customizers = Optional.ofNullable(databaseCustomizers.getIfAvailable()).orElse(emptyList());
 
-        this.databaseConfig = new DatabaseConfig(initdbProperties, configProperties, customizers);
-        this.clientConfig = new ClientConfig(connectProperties);
+        this.databaseConfigs = IntStream.range(0, Math.max(1, shards))
+                .mapToObj(shard -> new DatabaseConfig(initdbProperties, configProperties, serverProfile, dataDirectory, initdbCache, customizers, shard))
+                .collect(toList());
+        // disk-backed clusters used when the RAM disk runs out of space
+        this.fallbackConfigs = !dataDirectory.isRamDiskEnabled() ? emptyList() : IntStream.range(0, Math.max(1, shards))
+                .mapToObj(shard -> new DatabaseConfig(initdbProperties, configProperties, serverProfile, PostgresDataDirectory.disk(), initdbCache, customizers, shard))
+                .collect(toList());
+        this.clientConfig = new ClientConfig(connectProperties, unixSocket, maxIdleConnections, leakDetection);
     }
 
     @Override
     public DatabaseTemplate createTemplate(DatabaseRequest request) throws ProviderException {
+        DatabaseInstance instance = selectInstance(request);
+        if (isSingleCluster()) {
+            return createTemplate(instance, request);
+        }
+        return new ShardedDatabaseTemplate<>(instance, shard -> createTemplate(shard, request));
+    }
+
+    @Override
+    public void warmUp() throws ProviderException {
         try {
-            EmbeddedDatabase result = createDatabase(request);
+            getInstances(databaseConfigs);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), ProviderException.class);
+            throw new ProviderException("Unexpected error when preparing a database cluster", e.getCause());
+        }
+    }
+
+    @Override
+    public EmbeddedDatabase createDatabase(DatabaseRequest request) throws ProviderException {
+        return createDatabase(selectInstance(request), request);
+    }
+
+    private DatabaseTemplate createTemplate(DatabaseInstance instance, DatabaseRequest request) throws ProviderException {
+        try {
+            EmbeddedDatabase result = createDatabase(instance, request);
             BaseDataSource dataSource = result.unwrap(BaseDataSource.class);
             return new SimpleDatabaseTemplate(dataSource.getDatabaseName(), result::close);
         } catch (SQLException e) {
@@ -100,102 +145,205 @@ public class ZonkyPostgresDatabaseProvider implements TemplatableDatabaseProvide
         }
     }
 
-    @Override
-    public EmbeddedDatabase createDatabase(DatabaseRequest request) throws ProviderException {
+    private EmbeddedDatabase createDatabase(DatabaseInstance instance, DatabaseRequest request) throws ProviderException {
+        try {
+            return instance.createDatabase(clientConfig, ShardedDatabaseTemplate.forShard(request, instance));
+        } catch (SQLException e) {
+            throw new ProviderException("Unexpected error when creating a database", e);
+        }
+    }
+
+    private DatabaseInstance selectInstance(DatabaseRequest request) throws ProviderException {
         try {
-            DatabaseInstance instance = databases.get(databaseConfig);
-            return instance.createDatabase(clientConfig, request);
+            if (isSingleCluster()) {
+                return databases.get(databaseConfigs.get(0));
+            }
+            List<DatabaseInstance> instances = getInstances(databaseConfigs);
+            if (!fallbackConfigs.isEmpty()) {
+                instances.removeIf(instance -> !instance.hasCapacity());
+                if (instances.isEmpty()) {
+                    instances = getInstances(fallbackConfigs);
+                }
+            }
+            return ShardedDatabaseTemplate.selectShard(instances, request, DatabaseInstance::getLoad);
         } catch (ExecutionException | UncheckedExecutionException e) {
             Throwables.throwIfInstanceOf(e.getCause(), ProviderException.class);
             throw new ProviderException("Unexpected error when preparing a database cluster", e.getCause());
-        } catch (SQLException e) {
-            throw new ProviderException("Unexpected error when creating a database", e);
         }
     }
 
+    private List<DatabaseInstance> getInstances(List<DatabaseConfig> configs) throws ExecutionException {
+        List<DatabaseInstance> instances = new ArrayList<>(configs.size());
+        for (DatabaseConfig config : configs) {
+            instances.add(databases.get(config));
+        }
+        return instances;
+    }
+
+    private boolean isSingleCluster() {
+        return databaseConfigs.size() == 1 && fallbackConfigs.isEmpty();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ZonkyPostgresDatabaseProvider that = (ZonkyPostgresDatabaseProvider) o;
-        return Objects.equals(databaseConfig, that.databaseConfig) &&
+        return Objects.equals(databaseConfigs, that.databaseConfigs) &&
+                Objects.equals(fallbackConfigs, that.fallbackConfigs) &&
                 Objects.equals(clientConfig, that.clientConfig);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(databaseConfig, clientConfig);
+        return Objects.hash(databaseConfigs, fallbackConfigs, clientConfig);
     }
 
     protected static class DatabaseInstance {
 
         private final EmbeddedPostgres postgres;
-        private final Semaphore semaphore;
+        private final PostgresDataDirectory storage;
+        private final File dataDirectory;
+        private final String socketPath;
+        private final ConnectionAdmissionController admissionController;
+        // warm connections to the maintenance database save a backend startup for every create and drop statement
+        private final AdminDatabase<ClientConfig> adminDatabase = PostgresAdminDatabase.create(
+                config -> getDatabase(config, "postgres", MAX_IDLE_ADMIN_CONNECTIONS), config -> config.leakDetection);
+        private final AtomicInteger pendingRequests = new AtomicInteger();
 
         private DatabaseInstance(DatabaseConfig config) throws IOException {
-            EmbeddedPostgres.Builder builder = EmbeddedPostgres.builder();
-            config.applyTo(builder);
+            storage = config.dataDirectory;
+            dataDirectory = allocateDataDirectory(config);
 
-            postgres = builder.start();
+            try {
+                postgres = startPostgres(config, dataDirectory);
+            } catch (IOException | RuntimeException e) {
+                PostgresDataDirectory.release(dataDirectory);
+                throw e;
+            }
             registerShutdownHook(postgres);
 
             DataSource dataSource = postgres.getDatabase("postgres", "postgres");
             JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
             Integer maxConnections = jdbcTemplate.queryForObject("show max_connections", Integer.class);
+            socketPath = PostgresUnixSocket.socketPath(jdbcTemplate, postgres.getPort());
+            config.serverProfile.applyRuntimeProperties(dataSource, config.configProperties);
 
-            semaphore = new Semaphore(maxConnections);
+            admissionController = new ConnectionAdmissionController(maxConnections);
+        }
+
+        private static File allocateDataDirectory(DatabaseConfig config) throws IOException {
+            File dataDirectory = config.dataDirectory.allocate();
+            if (dataDirectory == null && config.initdbCache.isEnabled()) {
+                dataDirectory = Files.createTempDirectory("zonky-pg-").toFile();
+            }
+            return dataDirectory;
+        }
+
+        private static EmbeddedPostgres startPostgres(DatabaseConfig config, File dataDirectory) throws IOException {
+            EmbeddedPostgres.Builder builder = EmbeddedPostgres.builder();
+            config.applyTo(builder);
+
+            if (dataDirectory == null) {
+                return builder.start();
+            }
+
+            builder.setDataDirectory(dataDirectory);
+            builder.setCleanDataDirectory(true);
+
+            if (!config.initdbCache.isEnabled()) {
+                return builder.start();
+            }
+
+            File cachedDirectory = config.initdbCache.getDataDirectory(getCacheFlavor(builder), getField(builder, "localeConfig"), directory -> {
+                EmbeddedPostgres.Builder initdbBuilder = EmbeddedPostgres.builder();
+                config.applyTo(initdbBuilder);
+                initdbBuilder.setDataDirectory(directory);
+                initdbBuilder.setCleanDataDirectory(false);
+                initdbBuilder.start().close();
+            });
+
+            try {
+                PostgresInitdbCache.copy(cachedDirectory, dataDirectory);
+                // initdb is skipped when the data directory is already initialized and should not be cleaned
+                builder.setCleanDataDirectory(false);
+                EmbeddedPostgres postgres = builder.start();
+                ReflectionUtils.setField(postgres, "cleanDataDirectory", true);
+                return postgres;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Starting the database cluster from the cached data directory {} failed, falling back to initdb", cachedDirectory, e);
+                config.initdbCache.evict(cachedDirectory);
+                FileSystemUtils.deleteRecursively(dataDirectory);
+                Files.createDirectories(dataDirectory.toPath());
+
+                builder.setCleanDataDirectory(true);
+                return builder.start();
+            }
+        }
+
+        private static String getCacheFlavor(EmbeddedPostgres.Builder builder) {
+            Object binaryResolver = getField(builder, "pgBinaryResolver");
+            // lambda class names are not stable across runs
+            return "zonky-" + binaryResolver.getClass().getSimpleName().replaceAll("\\$\\$Lambda.*$", "");
         }
 
         public EmbeddedDatabase createDatabase(ClientConfig config, DatabaseRequest request) throws SQLException {
+            pendingRequests.incrementAndGet();
+            try {
+                return doCreateDatabase(config, request);
+            } finally {
+                pendingRequests.decrementAndGet();
+            }
+        }
+
+        /**
+         * Returns whether the data directory of the cluster has enough space for new databases.
+         */
+        public boolean hasCapacity() {
+            return storage.hasCapacity(dataDirectory);
+        }
+
+        /**
+         * Returns the load of the database cluster, that is the number of databases being created and the number of open connections.
+         */
+        public int getLoad() {
+            return pendingRequests.get() + admissionController.getActiveConnections();
+        }
+
+        private EmbeddedDatabase doCreateDatabase(ClientConfig config, DatabaseRequest request) throws SQLException {
             DatabaseTemplate template = request.getTemplate();
             DatabasePreparer preparer = request.getPreparer();
 
             String databaseName = RandomStringUtils.randomAlphabetic(12).toLowerCase(Locale.ENGLISH);
 
             if (template != null) {
-                executeStatement(config, String.format("CREATE DATABASE %s TEMPLATE %s OWNER %s ENCODING 'utf8'", databaseName, template.getTemplateName(), "postgres"));
+                adminDatabase.execute(config, String.format("CREATE DATABASE %s TEMPLATE %s OWNER %s ENCODING 'utf8'", databaseName, template.getTemplateName(), "postgres"));
             } else {
-                executeStatement(config, String.format("CREATE DATABASE %s OWNER %s ENCODING 'utf8'", databaseName, "postgres"));
+                adminDatabase.execute(config, String.format("CREATE DATABASE %s OWNER %s ENCODING 'utf8'", databaseName, "postgres"));
             }
 
+            BlockingDatabaseWrapper database = null;
             try {
-                EmbeddedDatabase database = getDatabase(config, databaseName);
+                database = getDatabase(config, databaseName, config.maxIdleConnections);
                 if (preparer != null) {
                     preparer.prepare(database);
                 }
+                // the database may wait in the prefetching queue or be used as a template, so it must not hold any connections
+                database.evictIdleConnections();
                 return database;
             } catch (Exception e) {
-                dropDatabase(config, databaseName);
-                throw e;
-            }
-        }
-
-        private void dropDatabase(ClientConfig config, String dbName) {
-            CompletableFuture.runAsync(() -> {
-                try {
-                    executeStatement(config, String.format("DROP DATABASE IF EXISTS %s", dbName));
-                } catch (SQLException e) {
-                    if ("55006".equals(e.getSQLState())) { // postgres error code for object_in_use condition
-                        if (logger.isTraceEnabled()) {
-                            logger.warn("Unable to release '{}' database", dbName, e);
-                        } else {
-                            logger.warn("Unable to release '{}' database", dbName);
-                        }
-                    }
+                if (database != null) {
+                    database.evictIdleConnections();
                 }
-            });
-        }
-
-        private void executeStatement(ClientConfig config, String ddlStatement) throws SQLException {
-            DataSource dataSource = getDatabase(config, "postgres");
-            try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(ddlStatement)) {
-                stmt.execute();
+                adminDatabase.dropDatabase(config, databaseName);
+                throw e;
             }
         }
 
-        private EmbeddedDatabase getDatabase(ClientConfig config, String dbName) {
+        private BlockingDatabaseWrapper getDatabase(ClientConfig config, String dbName, int maxIdleConnections) {
             PGSimpleDataSource dataSource = (PGSimpleDataSource) postgres.getDatabase("postgres", dbName, config.connectProperties);
-            return new BlockingDatabaseWrapper(new PostgresEmbeddedDatabase(dataSource, () -> dropDatabase(config, dbName)), semaphore);
+            config.unixSocket.applyTo(dataSource, socketPath);
+            return new BlockingDatabaseWrapper(new PostgresEmbeddedDatabase(dataSource, () -> adminDatabase.dropDatabase(config, dbName)), admissionController.forDatabase(), maxIdleConnections, "DISCARD ALL", config.leakDetection);
         }
 
         protected void registerShutdownHook(EmbeddedPostgres postgres) {
@@ -226,22 +374,29 @@ public class ZonkyPostgresDatabaseProvider implements TemplatableDatabaseProvide
 
         private final Map<String, String> initdbProperties;
         private final Map<String, String> configProperties;
+        private final PostgresServerProfile serverProfile;
+        private final PostgresDataDirectory dataDirectory;
+        private final PostgresInitdbCache initdbCache;
         private final List<Consumer<EmbeddedPostgres.Builder>> customizers;
         private final EmbeddedPostgres.Builder builder;
+        private final int shard;
 
-        private DatabaseConfig(Map<String, String> initdbProperties, Map<String, String> configProperties, List<Consumer<EmbeddedPostgres.Builder>> customizers) {
+        private DatabaseConfig(Map<String, String> initdbProperties, Map<String, String> configProperties, PostgresServerProfile serverProfile, PostgresDataDirectory dataDirectory, PostgresInitdbCache initdbCache, List<Consumer<EmbeddedPostgres.Builder>> customizers, int shard) {
             this.initdbProperties = ImmutableMap.copyOf(initdbProperties);
             this.configProperties = ImmutableMap.copyOf(configProperties);
+            this.serverProfile = serverProfile;
+            this.dataDirectory = dataDirectory;
+            this.initdbCache = initdbCache;
             this.customizers = ImmutableList.copyOf(customizers);
             this.builder = EmbeddedPostgres.builder();
+            this.shard = shard;
             applyTo(this.builder);
         }
 
         public final void applyTo(EmbeddedPostgres.Builder builder) {
-            builder.setServerConfig("max_connections", "300");
             builder.setPGStartupWait(Duration.ofSeconds(20L));
             initdbProperties.forEach(builder::setLocaleConfig);
-            configProperties.forEach(builder::setServerConfig);
+            serverProfile.serverProperties(configProperties).forEach(builder::setServerConfig);
             customizers.forEach(c -> c.accept(builder));
         }
 
@@ -250,21 +405,31 @@ public class ZonkyPostgresDatabaseProvider implements TemplatableDatabaseProvide
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             DatabaseConfig that = (DatabaseConfig) o;
-            return Objects.equals(builder, that.builder);
+            return shard == that.shard &&
+                    Objects.equals(serverProfile, that.serverProfile) &&
+                    Objects.equals(dataDirectory, that.dataDirectory) &&
+                    Objects.equals(initdbCache, that.initdbCache) &&
+                    Objects.equals(builder, that.builder);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(builder);
+            return Objects.hash(builder, serverProfile, dataDirectory, initdbCache, shard);
         }
     }
 
     private static class ClientConfig {
 
         private final Map<String, String> connectProperties;
+        private final PostgresUnixSocket unixSocket;
+        private final int maxIdleConnections;
+        private final boolean leakDetection;
 
-        private ClientConfig(Map<String, String> connectProperties) {
+        private ClientConfig(Map<String, String> connectProperties, PostgresUnixSocket unixSocket, int maxIdleConnections, boolean leakDetection) {
             this.connectProperties = ImmutableMap.copyOf(connectProperties);
+            this.unixSocket = unixSocket;
+            this.maxIdleConnections = maxIdleConnections;
+            this.leakDetection = leakDetection;
         }
 
         @Override
@@ -272,12 +437,15 @@ public class ZonkyPostgresDatabaseProvider implements TemplatableDatabaseProvide
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             ClientConfig that = (ClientConfig) o;
-            return Objects.equals(connectProperties, that.connectProperties);
+            return maxIdleConnections == that.maxIdleConnections &&
+                    leakDetection == that.leakDetection &&
+                    Objects.equals(connectProperties, that.connectProperties) &&
+                    Objects.equals(unixSocket, that.unixSocket);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(connectProperties);
+            return Objects.hash(connectProperties, unixSocket, maxIdleConnections, leakDetection);
         }
     }
 }
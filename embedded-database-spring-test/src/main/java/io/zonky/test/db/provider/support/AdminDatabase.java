@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.support;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Administrative access to a database server, used for creating and dropping the databases of a provider.
+ * <p>
+ * The admin data source is created once per client configuration, so that its warm connections can be reused
+ * by all create and drop statements. Drops are executed in the background by a {@link DatabaseReaper},
+ * the provider supplies only the statements dropping a database and the condition under which a failed drop is retried.
+ *
+ * @param <C> the type of the client configuration
+ */
+public class AdminDatabase<C> {
+
+    private static final int DROP_TIMEOUT_SECONDS = 10;
+
+    private final DataSourceFactory<C> dataSourceFactory;
+    private final DropStatement<C> dropStatement;
+    private final Predicate<SQLException> retryCondition;
+
+    private final ConcurrentMap<C, DataSource> dataSources = new ConcurrentHashMap<>();
+    private final ConcurrentMap<C, DatabaseReaper> reapers = new ConcurrentHashMap<>();
+
+    /**
+     * @param dataSourceFactory factory of data sources connected to the maintenance database of the server
+     * @param dropStatement statements dropping a database that is no longer used
+     * @param retryCondition condition determining that a failed drop should be retried later, e.g. because the database is in use
+     */
+    public AdminDatabase(DataSourceFactory<C> dataSourceFactory, DropStatement<C> dropStatement, Predicate<SQLException> retryCondition) {
+        this.dataSourceFactory = dataSourceFactory;
+        this.dropStatement = dropStatement;
+        this.retryCondition = retryCondition;
+    }
+
+    public DataSource getDataSource(C config) throws SQLException {
+        DataSource dataSource = dataSources.get(config);
+        if (dataSource == null) {
+            dataSource = dataSourceFactory.create(config);
+            DataSource existing = dataSources.putIfAbsent(config, dataSource);
+            if (existing != null) {
+                dataSource = existing;
+            }
+        }
+        return dataSource;
+    }
+
+    public void execute(C config, String ddlStatement) throws SQLException {
+        try (Connection connection = getDataSource(config).getConnection(); PreparedStatement stmt = connection.prepareStatement(ddlStatement)) {
+            stmt.execute();
+        }
+    }
+
+    /**
+     * Schedules a drop of the given database, drops are batched on a single admin connection.
+     */
+    public void dropDatabase(C config, String databaseName) {
+        getReaper(config).drop(databaseName, connection -> {
+            try (Statement statement = connection.createStatement()) {
+                // a drop waiting for a lock must not stall the whole batch of the reaper
+                statement.setQueryTimeout(DROP_TIMEOUT_SECONDS);
+                dropStatement.execute(statement, config, databaseName);
+            }
+        });
+    }
+
+    private DatabaseReaper getReaper(C config) {
+        return reapers.computeIfAbsent(config, c -> new DatabaseReaper(() -> getDataSource(c).getConnection(), retryCondition));
+    }
+
+    @FunctionalInterface
+    public interface DataSourceFactory<C> {
+
+        DataSource create(C config) throws SQLException;
+
+    }
+
+    @FunctionalInterface
+    public interface DropStatement<C> {
+
+        void execute(Statement statement, C config, String databaseName) throws SQLException;
+
+    }
+}
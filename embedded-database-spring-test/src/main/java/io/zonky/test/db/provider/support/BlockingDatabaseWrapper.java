@@ -17,6 +17,7 @@
 package io.zonky.test.db.provider.support;
 
 import io.zonky.test.db.provider.EmbeddedDatabase;
+import org.slf4j.LoggerFactory;
 
 import java.io.PrintWriter;
 import java.sql.Array;
@@ -35,38 +36,185 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
  * Blocking data source wrapper that should avoid to exhaustion of database connections.
- * It is a better choice than using a connection pool because database connections can be released as soon as possible.
+ * The number of open physical connections is limited by permits shared by all databases of a single database server.
+ * <p>
+ * Optionally, a small number of idle physical connections can be retained and reused for subsequent requests.
+ * The session state of a reused connection is reset when it is returned, and all idle connections are closed
+ * before the database is closed, so the database can be dropped right away. Idle connections keep their permits,
+ * so the permits remain the upper limit of all connections to the database server.
+ * <p>
+ * If the leak detection is enabled, the allocation stack of each connection is recorded.
+ * Connections that have not been closed until the database is closed are reported and forcibly closed,
+ * so their permits are not lost.
  */
 public class BlockingDatabaseWrapper implements EmbeddedDatabase {
 
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(BlockingDatabaseWrapper.class);
+
     private final EmbeddedDatabase delegate;
-    private final Semaphore semaphore;
+    private final ConnectionPermits permits;
+    private final int maxIdleConnections;
+    private final String resetStatement;
+    private final Set<BlockingConnectionWrapper> openConnections;
+
+    private final Deque<Connection> idleConnections = new ArrayDeque<>();
+    private boolean closed;
 
     public BlockingDatabaseWrapper(EmbeddedDatabase delegate, Semaphore semaphore) {
+        this(delegate, ConnectionPermits.of(semaphore), 0, null, false);
+    }
+
+    /**
+     * @param maxIdleConnections the maximum number of idle physical connections to retain, zero disables the reuse
+     * @param resetStatement optional database specific statement resetting the session state of a returned connection
+     * @param leakDetection whether to track open connections and reclaim the leaked ones when the database is closed
+     */
+    public BlockingDatabaseWrapper(EmbeddedDatabase delegate, ConnectionPermits permits, int maxIdleConnections, String resetStatement, boolean leakDetection) {
         this.delegate = delegate;
-        this.semaphore = semaphore;
+        this.permits = permits;
+        this.maxIdleConnections = maxIdleConnections;
+        this.resetStatement = resetStatement;
+        this.openConnections = leakDetection ? ConcurrentHashMap.newKeySet() : null;
     }
 
     @Override
     public Connection getConnection() throws SQLException {
-        semaphore.acquireUninterruptibly();
-        Connection connection = delegate.getConnection();
-        return new BlockingConnectionWrapper(connection, semaphore);
+        Connection connection = pollIdleConnection();
+        if (connection == null) {
+            permits.acquire();
+            try {
+                connection = delegate.getConnection();
+            } catch (SQLException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+        return registerConnection(new BlockingConnectionWrapper(connection, this, maxIdleConnections > 0));
     }
 
     @Override
     public Connection getConnection(String username, String password) throws SQLException {
-        semaphore.acquireUninterruptibly();
-        Connection connection = delegate.getConnection(username, password);
-        return new BlockingConnectionWrapper(connection, semaphore);
+        permits.acquire();
+        Connection connection;
+        try {
+            connection = delegate.getConnection(username, password);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return registerConnection(new BlockingConnectionWrapper(connection, this, false));
+    }
+
+    private Connection registerConnection(BlockingConnectionWrapper connection) {
+        if (openConnections != null) {
+            connection.allocationStack = new Throwable("Connection allocation stack trace");
+            openConnections.add(connection);
+        }
+        return connection;
+    }
+
+    private void reclaimLeakedConnections() {
+        if (openConnections == null) {
+            return;
+        }
+        for (BlockingConnectionWrapper connection : openConnections) {
+            if (connection.closed.compareAndSet(false, true)) {
+                logger.warn("Connection leak detected, the connection has not been closed before the database was released. " +
+                        "The connection will be closed forcibly.", connection.allocationStack);
+                closePhysicalConnection(connection.delegate);
+            }
+        }
+        openConnections.clear();
+    }
+
+    /**
+     * Closes all idle physical connections, e.g. before the database is used as a template
+     * or before it is handed over to another thread.
+     */
+    public void evictIdleConnections() {
+        List<Connection> connections;
+        synchronized (idleConnections) {
+            connections = new ArrayList<>(idleConnections);
+            idleConnections.clear();
+        }
+        connections.forEach(this::closePhysicalConnection);
+    }
+
+    private Connection pollIdleConnection() throws SQLException {
+        if (maxIdleConnections <= 0) {
+            return null;
+        }
+        while (true) {
+            Connection connection;
+            synchronized (idleConnections) {
+                connection = idleConnections.pollFirst();
+            }
+            if (connection == null) {
+                return null;
+            }
+            if (!connection.isClosed()) {
+                return connection;
+            }
+            closePhysicalConnection(connection);
+        }
+    }
+
+    private void releaseConnection(BlockingConnectionWrapper wrapper, Connection connection, boolean reusable) {
+        if (openConnections != null) {
+            openConnections.remove(wrapper);
+        }
+        if (reusable && resetConnection(connection)) {
+            synchronized (idleConnections) {
+                if (!closed && idleConnections.size() < maxIdleConnections) {
+                    idleConnections.addFirst(connection);
+                    return;
+                }
+            }
+        }
+        closePhysicalConnection(connection);
+    }
+
+    private boolean resetConnection(Connection connection) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (resetStatement != null) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(resetStatement);
+                }
+            }
+            connection.clearWarnings();
+            return true;
+        } catch (SQLException e) {
+            logger.trace("Unable to reset the connection, it will be closed", e);
+            return false;
+        }
+    }
+
+    private void closePhysicalConnection(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.trace("Unexpected error when closing the connection", e);
+        } finally {
+            permits.release();
+        }
     }
 
     @Override
@@ -117,223 +265,282 @@ public class BlockingDatabaseWrapper implements EmbeddedDatabase {
 
     @Override
     public void close() {
+        synchronized (idleConnections) {
+            closed = true;
+        }
+        evictIdleConnections();
+        reclaimLeakedConnections();
         delegate.close();
     }
 
     protected static class BlockingConnectionWrapper implements Connection {
 
         private final Connection delegate;
-        private final Semaphore semaphore;
+        private final BlockingDatabaseWrapper database;
+        private final boolean reusable;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Throwable allocationStack;
+        private Boolean initialReadOnly;
+        private Integer initialTransactionIsolation;
+        private String initialCatalog;
+        private String initialSchema;
 
-        private BlockingConnectionWrapper(Connection delegate, Semaphore semaphore) {
+        private BlockingConnectionWrapper(Connection delegate, BlockingDatabaseWrapper database, boolean reusable) {
             this.delegate = delegate;
-            this.semaphore = semaphore;
+            this.database = database;
+            this.reusable = reusable;
+        }
+
+        private Connection delegate() throws SQLException {
+            if (closed.get()) {
+                throw new SQLException("Connection is closed", "08003");
+            }
+            return delegate;
+        }
+
+        private void restoreSessionState() throws SQLException {
+            if (!delegate.getAutoCommit()) {
+                delegate.rollback();
+                delegate.setAutoCommit(true);
+            }
+            if (initialReadOnly != null) {
+                delegate.setReadOnly(initialReadOnly);
+            }
+            if (initialTransactionIsolation != null) {
+                delegate.setTransactionIsolation(initialTransactionIsolation);
+            }
+            if (initialCatalog != null) {
+                delegate.setCatalog(initialCatalog);
+            }
+            if (initialSchema != null) {
+                delegate.setSchema(initialSchema);
+            }
         }
 
         @Override
         public Statement createStatement() throws SQLException {
-            return delegate.createStatement();
+            return delegate().createStatement();
         }
 
         @Override
         public PreparedStatement prepareStatement(String sql) throws SQLException {
-            return delegate.prepareStatement(sql);
+            return delegate().prepareStatement(sql);
         }
 
         @Override
         public CallableStatement prepareCall(String sql) throws SQLException {
-            return delegate.prepareCall(sql);
+            return delegate().prepareCall(sql);
         }
 
         @Override
         public String nativeSQL(String sql) throws SQLException {
-            return delegate.nativeSQL(sql);
+            return delegate().nativeSQL(sql);
         }
 
         @Override
         public void setAutoCommit(boolean autoCommit) throws SQLException {
-            delegate.setAutoCommit(autoCommit);
+            delegate().setAutoCommit(autoCommit);
         }
 
         @Override
         public boolean getAutoCommit() throws SQLException {
-            return delegate.getAutoCommit();
+            return delegate().getAutoCommit();
         }
 
         @Override
         public void commit() throws SQLException {
-            delegate.commit();
+            delegate().commit();
         }
 
         @Override
         public void rollback() throws SQLException {
-            delegate.rollback();
+            delegate().rollback();
         }
 
         @Override
         public void close() throws SQLException {
-            delegate.close();
-            semaphore.release();
+            if (closed.compareAndSet(false, true)) {
+                boolean reusable = this.reusable;
+                if (reusable) {
+                    try {
+                        restoreSessionState();
+                    } catch (SQLException e) {
+                        logger.trace("Unable to restore the session state, the connection will be closed", e);
+                        reusable = false;
+                    }
+                }
+                database.releaseConnection(this, delegate, reusable);
+            }
         }
 
         @Override
         public boolean isClosed() throws SQLException {
-            return delegate.isClosed();
+            return closed.get() || delegate.isClosed();
         }
 
         @Override
         public DatabaseMetaData getMetaData() throws SQLException {
-            return delegate.getMetaData();
+            return delegate().getMetaData();
         }
 
         @Override
         public void setReadOnly(boolean readOnly) throws SQLException {
-            delegate.setReadOnly(readOnly);
+            if (initialReadOnly == null) {
+                initialReadOnly = delegate().isReadOnly();
+            }
+            delegate().setReadOnly(readOnly);
         }
 
         @Override
         public boolean isReadOnly() throws SQLException {
-            return delegate.isReadOnly();
+            return delegate().isReadOnly();
         }
 
         @Override
         public void setCatalog(String catalog) throws SQLException {
-            delegate.setCatalog(catalog);
+            if (initialCatalog == null) {
+                initialCatalog = delegate().getCatalog();
+            }
+            delegate().setCatalog(catalog);
         }
 
         @Override
         public String getCatalog() throws SQLException {
-            return delegate.getCatalog();
+            return delegate().getCatalog();
         }
 
         @Override
         public void setTransactionIsolation(int level) throws SQLException {
-            delegate.setTransactionIsolation(level);
+            if (initialTransactionIsolation == null) {
+                initialTransactionIsolation = delegate().getTransactionIsolation();
+            }
+            delegate().setTransactionIsolation(level);
         }
 
         @Override
         public int getTransactionIsolation() throws SQLException {
-            return delegate.getTransactionIsolation();
+            return delegate().getTransactionIsolation();
         }
 
         @Override
         public SQLWarning getWarnings() throws SQLException {
-            return delegate.getWarnings();
+            return delegate().getWarnings();
         }
 
         @Override
         public void clearWarnings() throws SQLException {
-            delegate.clearWarnings();
+            delegate().clearWarnings();
         }
 
         @Override
         public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
-            return delegate.createStatement(resultSetType, resultSetConcurrency);
+            return delegate().createStatement(resultSetType, resultSetConcurrency);
         }
 
         @Override
         public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-            return delegate.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            return delegate().prepareStatement(sql, resultSetType, resultSetConcurrency);
         }
 
         @Override
         public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-            return delegate.prepareCall(sql, resultSetType, resultSetConcurrency);
+            return delegate().prepareCall(sql, resultSetType, resultSetConcurrency);
         }
 
         @Override
         public Map<String, Class<?>> getTypeMap() throws SQLException {
-            return delegate.getTypeMap();
+            return delegate().getTypeMap();
         }
 
         @Override
         public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
-            delegate.setTypeMap(map);
+            delegate().setTypeMap(map);
         }
 
         @Override
         public void setHoldability(int holdability) throws SQLException {
-            delegate.setHoldability(holdability);
+            delegate().setHoldability(holdability);
         }
 
         @Override
         public int getHoldability() throws SQLException {
-            return delegate.getHoldability();
+            return delegate().getHoldability();
         }
 
         @Override
         public Savepoint setSavepoint() throws SQLException {
-            return delegate.setSavepoint();
+            return delegate().setSavepoint();
         }
 
         @Override
         public Savepoint setSavepoint(String name) throws SQLException {
-            return delegate.setSavepoint(name);
+            return delegate().setSavepoint(name);
         }
 
         @Override
         public void rollback(Savepoint savepoint) throws SQLException {
-            delegate.rollback(savepoint);
+            delegate().rollback(savepoint);
         }
 
         @Override
         public void releaseSavepoint(Savepoint savepoint) throws SQLException {
-            delegate.releaseSavepoint(savepoint);
+            delegate().releaseSavepoint(savepoint);
         }
 
         @Override
         public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-            return delegate.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+            return delegate().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
         }
 
         @Override
         public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-            return delegate.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+            return delegate().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
         }
 
         @Override
         public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-            return delegate.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+            return delegate().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
         }
 
         @Override
         public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
-            return delegate.prepareStatement(sql, autoGeneratedKeys);
+            return delegate().prepareStatement(sql, autoGeneratedKeys);
         }
 
         @Override
         public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
-            return delegate.prepareStatement(sql, columnIndexes);
+            return delegate().prepareStatement(sql, columnIndexes);
         }
 
         @Override
         public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
-            return delegate.prepareStatement(sql, columnNames);
+            return delegate().prepareStatement(sql, columnNames);
         }
 
         @Override
         public Clob createClob() throws SQLException {
-            return delegate.createClob();
+            return delegate().createClob();
         }
 
         @Override
         public Blob createBlob() throws SQLException {
-            return delegate.createBlob();
+            return delegate().createBlob();
         }
 
         @Override
         public NClob createNClob() throws SQLException {
-            return delegate.createNClob();
+            return delegate().createNClob();
         }
 
         @Override
         public SQLXML createSQLXML() throws SQLException {
-            return delegate.createSQLXML();
+            return delegate().createSQLXML();
         }
 
         @Override
         public boolean isValid(int timeout) throws SQLException {
-            return delegate.isValid(timeout);
+            return delegate().isValid(timeout);
         }
 
         @Override
@@ -348,57 +555,60 @@ public class BlockingDatabaseWrapper implements EmbeddedDatabase {
 
         @Override
         public String getClientInfo(String name) throws SQLException {
-            return delegate.getClientInfo(name);
+            return delegate().getClientInfo(name);
         }
 
         @Override
         public Properties getClientInfo() throws SQLException {
-            return delegate.getClientInfo();
+            return delegate().getClientInfo();
         }
 
         @Override
         public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
-            return delegate.createArrayOf(typeName, elements);
+            return delegate().createArrayOf(typeName, elements);
         }
 
         @Override
         public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
-            return delegate.createStruct(typeName, attributes);
+            return delegate().createStruct(typeName, attributes);
         }
 
         @Override
         public void setSchema(String schema) throws SQLException {
-            delegate.setSchema(schema);
+            if (initialSchema == null) {
+                initialSchema = delegate().getSchema();
+            }
+            delegate().setSchema(schema);
         }
 
         @Override
         public String getSchema() throws SQLException {
-            return delegate.getSchema();
+            return delegate().getSchema();
         }
 
         @Override
         public void abort(Executor executor) throws SQLException {
-            delegate.abort(executor);
+            delegate().abort(executor);
         }
 
         @Override
         public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
-            delegate.setNetworkTimeout(executor, milliseconds);
+            delegate().setNetworkTimeout(executor, milliseconds);
         }
 
         @Override
         public int getNetworkTimeout() throws SQLException {
-            return delegate.getNetworkTimeout();
+            return delegate().getNetworkTimeout();
         }
 
         @Override
         public <T> T unwrap(Class<T> iface) throws SQLException {
-            return delegate.unwrap(iface);
+            return delegate().unwrap(iface);
         }
 
         @Override
         public boolean isWrapperFor(Class<?> iface) throws SQLException {
-            return delegate.isWrapperFor(iface);
+            return delegate().isWrapperFor(iface);
         }
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.support;
+
+import io.zonky.test.db.provider.common.PriorityThreadPoolTaskExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.springframework.core.Ordered.HIGHEST_PRECEDENCE;
+
+/**
+ * Fair admission controller limiting the number of connections opened to a single database server.
+ * <p>
+ * Connections requested by background work (e.g. database prefetching) can not use the reserved part of the capacity
+ * and are limited by a per-database quota, so they can never starve the tests waiting for their databases.
+ * Foreground requests are only limited by the total capacity and take precedence over waiting background requests.
+ * <p>
+ * The time spent by waiting for a connection is recorded and slow acquisitions are logged,
+ * so an exhaustion of connections is visible rather than being a silent stall.
+ */
+public class ConnectionAdmissionController {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionAdmissionController.class);
+
+    private static final long SLOW_ACQUISITION_THRESHOLD = TimeUnit.SECONDS.toNanos(5);
+
+    private final int maxConnections;
+    private final int reservedConnections;
+    private final int databaseQuota;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition released = lock.newCondition();
+
+    private int activeConnections;
+    private int waitingForegroundRequests;
+
+    private final LongAdder acquisitionCount = new LongAdder();
+    private final LongAdder contendedAcquisitionCount = new LongAdder();
+    private final LongAdder totalWaitTime = new LongAdder();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /**
+     * Creates an admission controller reserving 10% of the capacity for foreground requests
+     * and limiting background requests to a quarter of the remaining capacity per database.
+     */
+    public ConnectionAdmissionController(int maxConnections) {
+        this(maxConnections, defaultReservedConnections(maxConnections),
+                Math.max(2, (maxConnections - defaultReservedConnections(maxConnections)) / 4));
+    }
+
+    /**
+     * @param maxConnections the maximum number of connections opened to the database server
+     * @param reservedConnections the number of connections that can be used only by foreground requests
+     * @param databaseQuota the maximum number of connections to a single database used by background requests
+     */
+    public ConnectionAdmissionController(int maxConnections, int reservedConnections, int databaseQuota) {
+        checkArgument(maxConnections > 0, "maxConnections must be greater than 0");
+        checkArgument(reservedConnections >= 0 && reservedConnections < maxConnections, "reservedConnections must be less than maxConnections");
+        checkArgument(databaseQuota > 0, "databaseQuota must be greater than 0");
+
+        this.maxConnections = maxConnections;
+        this.reservedConnections = reservedConnections;
+        this.databaseQuota = databaseQuota;
+    }
+
+    private static int defaultReservedConnections(int maxConnections) {
+        return Math.min(maxConnections - 1, Math.max(1, maxConnections / 10));
+    }
+
+    /**
+     * Creates permits for connections to a new database, each database is subject to its own quota.
+     */
+    public ConnectionPermits forDatabase() {
+        return new DatabasePermits();
+    }
+
+    public int getActiveConnections() {
+        lock.lock();
+        try {
+            return activeConnections;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAcquisitionCount() {
+        return acquisitionCount.sum();
+    }
+
+    /**
+     * Returns the number of acquisitions that had to wait for a connection to be released.
+     */
+    public long getContendedAcquisitionCount() {
+        return contendedAcquisitionCount.sum();
+    }
+
+    public Duration getTotalWaitTime() {
+        return Duration.ofNanos(totalWaitTime.sum());
+    }
+
+    public Duration getMaxWaitTime() {
+        return Duration.ofNanos(maxWaitTime.get());
+    }
+
+    protected boolean isForegroundRequest() {
+        // requests made outside of the prioritized tasks come directly from tests
+        return PriorityThreadPoolTaskExecutor.currentPriority(HIGHEST_PRECEDENCE) == HIGHEST_PRECEDENCE;
+    }
+
+    private void acquire(DatabasePermits database) {
+        boolean foreground = isForegroundRequest();
+
+        lock.lock();
+        try {
+            if (!tryAcquire(database, foreground)) {
+                long startTime = System.nanoTime();
+                if (foreground) {
+                    waitingForegroundRequests++;
+                }
+                try {
+                    do {
+                        released.awaitUninterruptibly();
+                    } while (!tryAcquire(database, foreground));
+                } finally {
+                    if (foreground) {
+                        waitingForegroundRequests--;
+                    }
+                }
+                recordWait(System.nanoTime() - startTime, foreground);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        acquisitionCount.increment();
+    }
+
+    private boolean tryAcquire(DatabasePermits database, boolean foreground) {
+        if (foreground) {
+            if (activeConnections >= maxConnections) {
+                return false;
+            }
+        } else if (waitingForegroundRequests > 0
+                || activeConnections >= maxConnections - reservedConnections
+                || database.activeConnections >= databaseQuota) {
+            return false;
+        }
+
+        activeConnections++;
+        database.activeConnections++;
+        return true;
+    }
+
+    private void release(DatabasePermits database) {
+        lock.lock();
+        try {
+            activeConnections--;
+            database.activeConnections--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordWait(long waitTime, boolean foreground) {
+        contendedAcquisitionCount.increment();
+        totalWaitTime.add(waitTime);
+        maxWaitTime.accumulateAndGet(waitTime, Math::max);
+
+        if (waitTime >= SLOW_ACQUISITION_THRESHOLD) {
+            logger.warn("{} request waited {} ms for a database connection, {} of {} connections are in use",
+                    foreground ? "Foreground" : "Background", TimeUnit.NANOSECONDS.toMillis(waitTime), activeConnections, maxConnections);
+        } else if (logger.isTraceEnabled()) {
+            logger.trace("{} request waited {} ms for a database connection",
+                    foreground ? "Foreground" : "Background", TimeUnit.NANOSECONDS.toMillis(waitTime));
+        }
+    }
+
+    private class DatabasePermits implements ConnectionPermits {
+
+        private int activeConnections; // guarded by the lock of the controller
+
+        @Override
+        public void acquire() {
+            ConnectionAdmissionController.this.acquire(this);
+        }
+
+        @Override
+        public void release() {
+            ConnectionAdmissionController.this.release(this);
+        }
+    }
+}
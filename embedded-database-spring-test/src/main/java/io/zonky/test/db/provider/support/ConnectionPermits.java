@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.support;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Permits limiting the number of physical connections opened to a single database.
+ *
+ * @see ConnectionAdmissionController#forDatabase()
+ */
+public interface ConnectionPermits {
+
+    /**
+     * Blocks until a connection can be opened.
+     */
+    void acquire();
+
+    /**
+     * Releases a permit acquired by the {@link #acquire()} method.
+     */
+    void release();
+
+    static ConnectionPermits of(Semaphore semaphore) {
+        return new ConnectionPermits() {
+
+            @Override
+            public void acquire() {
+                semaphore.acquireUninterruptibly();
+            }
+
+            @Override
+            public void release() {
+                semaphore.release();
+            }
+        };
+    }
+}
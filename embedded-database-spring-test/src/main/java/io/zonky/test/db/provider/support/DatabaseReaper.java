@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.support;
+
+import io.zonky.test.db.provider.common.PriorityThreadPoolTaskExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
+import static org.springframework.core.Ordered.LOWEST_PRECEDENCE;
+
+/**
+ * Background reaper releasing databases that are no longer used.
+ * <p>
+ * Requested drops are collected into batches that are executed on a single connection
+ * by a dedicated daemon thread marked as a background work, so releasing of databases never blocks the tests.
+ * Drops failing because the database is still in use are retried with an exponential backoff,
+ * and all pending drops are executed when the JVM is shutting down.
+ */
+public class DatabaseReaper {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseReaper.class);
+
+    private static final long BATCH_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long INITIAL_BACKOFF = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int MAX_ATTEMPTS = 6;
+
+    private static final DelayQueue<PendingDrop> queue = new DelayQueue<>();
+    private static final Set<DatabaseReaper> reapers = ConcurrentHashMap.newKeySet();
+
+    static {
+        Thread reaperThread = new Thread(DatabaseReaper::reap, "database-reaper");
+        reaperThread.setDaemon(true);
+        reaperThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> reapers.forEach(DatabaseReaper::drain), "database-reaper-shutdown"));
+    }
+
+    private final Callable<Connection> connectionFactory;
+    private final Predicate<SQLException> retryCondition;
+
+    /**
+     * @param connectionFactory factory of connections passed to the drop actions, may be null if the actions do not need any
+     * @param retryCondition condition determining that a failed drop should be retried later, e.g. because the database is in use
+     */
+    public DatabaseReaper(Callable<Connection> connectionFactory, Predicate<SQLException> retryCondition) {
+        this.connectionFactory = connectionFactory;
+        this.retryCondition = retryCondition;
+        reapers.add(this);
+    }
+
+    /**
+     * Schedules the given action releasing a database.
+     */
+    public void drop(String databaseName, DropAction action) {
+        queue.add(new PendingDrop(this, databaseName, action, 1, BATCH_DELAY));
+    }
+
+    /**
+     * Executes all pending drops immediately in the calling thread.
+     */
+    public void drain() {
+        List<PendingDrop> drops = new ArrayList<>();
+        for (PendingDrop drop : queue) {
+            if (drop.reaper == this && queue.remove(drop)) {
+                drops.add(drop);
+            }
+        }
+        if (!drops.isEmpty()) {
+            executeBatch(drops, true);
+        }
+    }
+
+    public int getPendingDrops() {
+        return (int) queue.stream().filter(drop -> drop.reaper == this).count();
+    }
+
+    private static void reap() {
+        // the reaper thread is marked as a background work, so its connections never take precedence over the tests
+        PriorityThreadPoolTaskExecutor.runWithPriority(LOWEST_PRECEDENCE, () -> {
+            try {
+                while (true) {
+                    Map<DatabaseReaper, List<PendingDrop>> batches = takeBatch().stream()
+                            .collect(groupingBy(drop -> drop.reaper, LinkedHashMap::new, toList()));
+                    batches.forEach((reaper, batch) -> reaper.executeBatch(batch, false));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private static List<PendingDrop> takeBatch() throws InterruptedException {
+        PendingDrop head = queue.take();
+        List<PendingDrop> drops = new ArrayList<>();
+        drops.add(head);
+
+        // drops requested within the batch window of the first drop are executed together with it,
+        // even if their own delay has not elapsed yet, otherwise each drop would end up in a separate batch
+        long batchEnd = Math.max(System.nanoTime(), head.executionTime + BATCH_DELAY);
+        for (PendingDrop drop : queue) {
+            if (drop.executionTime <= batchEnd && queue.remove(drop)) {
+                drops.add(drop);
+            }
+        }
+
+        drops.sort(null);
+        return drops;
+    }
+
+    private void executeBatch(List<PendingDrop> batch, boolean draining) {
+        Connection connection = null;
+        try {
+            if (connectionFactory != null) {
+                connection = connectionFactory.call();
+            }
+            for (PendingDrop drop : batch) {
+                try {
+                    drop.action.drop(connection);
+                } catch (Exception e) {
+                    handleFailure(drop, e, draining);
+                }
+            }
+        } catch (Exception e) {
+            batch.forEach(drop -> handleFailure(drop, e, draining));
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    logger.trace("Unexpected error when closing the connection", e);
+                }
+            }
+        }
+    }
+
+    private void handleFailure(PendingDrop drop, Exception e, boolean draining) {
+        if (draining) {
+            // the database server may be already shutting down
+            logger.debug("Unable to release '{}' database during shutdown", drop.databaseName, e);
+        } else if (e instanceof SQLException && retryCondition.test((SQLException) e) && drop.attempt < MAX_ATTEMPTS) {
+            logger.trace("Unable to release '{}' database, the operation will be retried", drop.databaseName, e);
+            queue.add(drop.retry());
+        } else if (logger.isTraceEnabled()) {
+            logger.warn("Unable to release '{}' database", drop.databaseName, e);
+        } else {
+            logger.warn("Unable to release '{}' database", drop.databaseName);
+        }
+    }
+
+    @FunctionalInterface
+    public interface DropAction {
+
+        /**
+         * @param connection connection shared by all drops of a batch, or null if the reaper has no connection factory
+         */
+        void drop(Connection connection) throws Exception;
+    }
+
+    private static class PendingDrop implements Delayed {
+
+        private final DatabaseReaper reaper;
+        private final String databaseName;
+        private final DropAction action;
+        private final int attempt;
+        private final long executionTime;
+
+        private PendingDrop(DatabaseReaper reaper, String databaseName, DropAction action, int attempt, long delay) {
+            this.reaper = reaper;
+            this.databaseName = databaseName;
+            this.action = action;
+            this.attempt = attempt;
+            this.executionTime = System.nanoTime() + delay;
+        }
+
+        private PendingDrop retry() {
+            return new PendingDrop(reaper, databaseName, action, attempt + 1, INITIAL_BACKOFF << (attempt - 1));
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(executionTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(executionTime, ((PendingDrop) other).executionTime);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider.support;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.zonky.test.db.provider.DatabaseRequest;
+import io.zonky.test.db.provider.DatabaseTemplate;
+import io.zonky.test.db.provider.ProviderException;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import static java.util.Comparator.comparingInt;
+
+/**
+ * Template of a database spread across multiple independent database servers (shards).
+ * <p>
+ * A template is created only on the shard where it was requested and cloned to other shards lazily,
+ * by replaying the preparation of the template when a database based on it is first routed there.
+ *
+ * @param <S> the type of shards
+ */
+public class ShardedDatabaseTemplate<S> implements DatabaseTemplate {
+
+    /**
+     * The maximum difference in load for which a shard holding the requested template is preferred over the least loaded shard.
+     */
+    public static final int TEMPLATE_AFFINITY_THRESHOLD = 4;
+
+    private final LoadingCache<S, DatabaseTemplate> templates;
+    private final String templateName;
+
+    /**
+     * Creates the template on the given initial shard.
+     *
+     * @param shard the shard where the template is created immediately
+     * @param templateFactory factory creating a copy of the template on a given shard
+     */
+    public ShardedDatabaseTemplate(S shard, Function<S, DatabaseTemplate> templateFactory) {
+        this.templates = CacheBuilder.newBuilder().build(CacheLoader.from(templateFactory::apply));
+        this.templateName = forShard(shard).getTemplateName();
+    }
+
+    /**
+     * Returns the shard with the lowest load, shards already holding a copy of the requested template are preferred
+     * unless their load exceeds the lowest load by more than {@link #TEMPLATE_AFFINITY_THRESHOLD},
+     * because cloning the template to another shard costs more than a few additional connections.
+     */
+    public static <S> S selectShard(List<S> shards, DatabaseRequest request, ToIntFunction<S> loadFunction) {
+        DatabaseTemplate template = request.getTemplate();
+        S leastLoadedShard = shards.stream()
+                .min(comparingInt(loadFunction).thenComparing(shard -> !isAvailableOn(template, shard)))
+                .orElseThrow(() -> new IllegalArgumentException("At least one shard must be available"));
+
+        if (!(template instanceof ShardedDatabaseTemplate) || isAvailableOn(template, leastLoadedShard)) {
+            return leastLoadedShard;
+        }
+
+        int lowestLoad = loadFunction.applyAsInt(leastLoadedShard);
+        return shards.stream()
+                .filter(shard -> isAvailableOn(template, shard))
+                .min(comparingInt(loadFunction))
+                .filter(shard -> loadFunction.applyAsInt(shard) - lowestLoad <= TEMPLATE_AFFINITY_THRESHOLD)
+                .orElse(leastLoadedShard);
+    }
+
+    /**
+     * Returns a request referencing a copy of the requested template that is available on the given shard.
+     */
+    public static <S> DatabaseRequest forShard(DatabaseRequest request, S shard) {
+        DatabaseTemplate template = request.getTemplate();
+        if (template instanceof ShardedDatabaseTemplate) {
+            @SuppressWarnings("unchecked")
+            ShardedDatabaseTemplate<S> shardedTemplate = (ShardedDatabaseTemplate<S>) template;
+            return DatabaseRequest.of(request.getPreparer(), shardedTemplate.forShard(shard));
+        }
+        return request;
+    }
+
+    private static boolean isAvailableOn(DatabaseTemplate template, Object shard) {
+        return template instanceof ShardedDatabaseTemplate
+                && ((ShardedDatabaseTemplate<?>) template).templates.asMap().containsKey(shard);
+    }
+
+    public DatabaseTemplate forShard(S shard) {
+        try {
+            return templates.getUnchecked(shard);
+        } catch (UncheckedExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), ProviderException.class);
+            throw new ProviderException("Unexpected error when cloning a database template", e.getCause());
+        }
+    }
+
+    @Override
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    @Override
+    public synchronized void close() {
+        templates.asMap().values().forEach(DatabaseTemplate::close);
+        templates.invalidateAll();
+    }
+}
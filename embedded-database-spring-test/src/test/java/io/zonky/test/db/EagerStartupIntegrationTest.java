@@ -0,0 +1,45 @@
+package io.zonky.test.db;
+
+import io.zonky.test.category.SpringTestSuite;
+import io.zonky.test.db.config.Provider;
+import io.zonky.test.db.provider.DatabaseProvider;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static io.zonky.test.db.AutoConfigureEmbeddedDatabase.DatabaseProvider.ZONKY;
+import static io.zonky.test.db.AutoConfigureEmbeddedDatabase.DatabaseType.POSTGRES;
+import static org.mockito.Mockito.RETURNS_MOCKS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@RunWith(SpringRunner.class)
+@Category(SpringTestSuite.class)
+@AutoConfigureEmbeddedDatabase(type = POSTGRES, provider = ZONKY)
+@ContextConfiguration
+public class EagerStartupIntegrationTest {
+
+    @Configuration
+    static class Config {
+
+        @Bean
+        @Provider(type = "zonky", database = "postgres")
+        public DatabaseProvider zonkyPostgresDatabaseProvider() {
+            return mock(DatabaseProvider.class, RETURNS_MOCKS);
+        }
+    }
+
+    @Autowired
+    private DatabaseProvider zonkyPostgresDatabaseProvider;
+
+    @Test
+    public void providerShouldBeStartedWithContext() {
+        verify(zonkyPostgresDatabaseProvider, timeout(5000)).warmUp();
+    }
+}
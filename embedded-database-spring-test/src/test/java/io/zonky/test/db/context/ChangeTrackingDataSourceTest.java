@@ -0,0 +1,82 @@
+package io.zonky.test.db.context;
+
+import io.zonky.test.db.provider.EmbeddedDatabase;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.RETURNS_MOCKS;
+import static org.mockito.Mockito.mock;
+
+public class ChangeTrackingDataSourceTest {
+
+    @Test
+    public void readOnlyStatementsShouldNotBeTracked() throws SQLException {
+        ChangeTrackingDataSource dataSource = ChangeTrackingDataSource.wrap(mock(EmbeddedDatabase.class, RETURNS_MOCKS));
+
+        Connection connection = dataSource.getConnection();
+        connection.setAutoCommit(false);
+
+        Statement statement = connection.createStatement();
+        statement.executeQuery("select * from person");
+        statement.execute("/* comment */ SHOW search_path");
+        statement.close();
+
+        PreparedStatement preparedStatement = connection.prepareStatement("select name from person where id = ?");
+        preparedStatement.setLong(1, 1L);
+        preparedStatement.executeQuery();
+        preparedStatement.close();
+
+        connection.rollback();
+        connection.close();
+
+        assertThat(dataSource.hasChanges()).isFalse();
+    }
+
+    @Test
+    public void modifyingStatementsShouldBeTracked() throws SQLException {
+        ChangeTrackingDataSource dataSource = ChangeTrackingDataSource.wrap(mock(EmbeddedDatabase.class, RETURNS_MOCKS));
+
+        Connection connection = dataSource.getConnection();
+        connection.createStatement().executeQuery("select * from person");
+        assertThat(dataSource.hasChanges()).isFalse();
+
+        connection.createStatement().executeUpdate("insert into person (id, name) values (1, 'Dave')");
+        assertThat(dataSource.hasChanges()).isTrue();
+    }
+
+    @Test
+    public void preparedStatementShouldBeTrackedWhenExecuted() throws SQLException {
+        ChangeTrackingDataSource dataSource = ChangeTrackingDataSource.wrap(mock(EmbeddedDatabase.class, RETURNS_MOCKS));
+
+        PreparedStatement statement = dataSource.getConnection().prepareStatement("update person set name = ? where id = ?");
+        assertThat(dataSource.hasChanges()).isFalse();
+
+        statement.executeUpdate();
+        assertThat(dataSource.hasChanges()).isTrue();
+    }
+
+    @Test
+    public void unknownOperationsShouldBeTrackedAsChanges() throws SQLException {
+        ChangeTrackingDataSource dataSource1 = ChangeTrackingDataSource.wrap(mock(EmbeddedDatabase.class, RETURNS_MOCKS));
+        dataSource1.getConnection().prepareCall("{call next_person_id()}");
+        assertThat(dataSource1.hasChanges()).isTrue();
+
+        ChangeTrackingDataSource dataSource2 = ChangeTrackingDataSource.wrap(mock(EmbeddedDatabase.class, RETURNS_MOCKS));
+        dataSource2.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE);
+        assertThat(dataSource2.hasChanges()).isTrue();
+
+        ChangeTrackingDataSource dataSource3 = ChangeTrackingDataSource.wrap(mock(EmbeddedDatabase.class, RETURNS_MOCKS));
+        dataSource3.getConnection().unwrap(Connection.class);
+        assertThat(dataSource3.hasChanges()).isTrue();
+
+        ChangeTrackingDataSource dataSource4 = ChangeTrackingDataSource.wrap(mock(EmbeddedDatabase.class, RETURNS_MOCKS));
+        dataSource4.getConnection().createStatement().executeQuery("select nextval('person_id_seq')");
+        assertThat(dataSource4.hasChanges()).isTrue();
+    }
+}
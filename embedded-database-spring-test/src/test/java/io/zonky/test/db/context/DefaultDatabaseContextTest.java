@@ -21,18 +21,21 @@ import org.springframework.beans.factory.BeanFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.core.task.SyncTaskExecutor;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.mock.env.MockEnvironment;
 import org.springframework.util.ReflectionUtils;
 
 import javax.sql.DataSource;
 import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import static io.zonky.test.db.context.DatabaseContext.ContextState.DIRTY;
 import static io.zonky.test.db.context.DatabaseContext.ContextState.FRESH;
 import static io.zonky.test.db.context.DatabaseContext.ContextState.INITIALIZING;
+import static io.zonky.test.db.context.DefaultDatabaseContext.BOOTSTRAP_EXECUTOR_BEAN_NAME;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
 import static org.mockito.Matchers.any;
@@ -40,6 +43,7 @@ import static org.mockito.Mockito.RETURNS_MOCKS;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -67,7 +71,7 @@ public class DefaultDatabaseContextTest {
 
     @Before
     public void setUp() {
-        when(beanFactory.getBean(TaskExecutor.class)).thenReturn(new SyncTaskExecutor());
+        when(beanFactory.getBean(BOOTSTRAP_EXECUTOR_BEAN_NAME, Executor.class)).thenReturn(new SyncTaskExecutor());
         when(applicationContext.containsBean("testDatabaseContext")).thenReturn(true);
 
         databaseContext = spy(new DefaultDatabaseContext(() -> databaseProvider));
@@ -169,6 +173,131 @@ public class DefaultDatabaseContextTest {
         verifyNoMoreInteractions(databaseProvider);
     }
 
+    @Test
+    public void dirtyDatabaseShouldBeResolvedWithoutLockingUntilNextTransition() {
+        EmbeddedDatabase database1 = mock(EmbeddedDatabase.class);
+        EmbeddedDatabase database2 = mock(EmbeddedDatabase.class);
+        when(databaseProvider.createDatabase(any())).thenReturn(database1, database2);
+
+        databaseContext.handleContextRefreshed(new ContextRefreshedEvent(applicationContext));
+        databaseContext.handleTestStarted(new TestExecutionStartedEvent(this, MOCK_TEST_METHOD));
+
+        assertThat(databaseContext.getDatabase()).isSameAs(database1);
+        assertThat(databaseContext.getDatabase()).isSameAs(database1);
+        assertThat(databaseContext.getDatabase()).isSameAs(database1);
+        verify(databaseContext, times(1)).getSharedDatabase();
+
+        databaseContext.handleTestFinished(new TestExecutionFinishedEvent(this, MOCK_TEST_METHOD));
+        databaseContext.reset();
+
+        assertThat(databaseContext.getDatabase()).isSameAs(database2);
+        assertThat(databaseContext.getDatabase()).isSameAs(database2);
+        verify(databaseContext, times(2)).getSharedDatabase();
+        verify(database1, timeout(1000)).close();
+    }
+
+    @Test
+    public void changeTrackingShouldSkipResetWhenDatabaseWasNotModified() throws SQLException {
+        EmbeddedDatabase database1 = mock(EmbeddedDatabase.class, RETURNS_MOCKS);
+        EmbeddedDatabase database2 = mock(EmbeddedDatabase.class, RETURNS_MOCKS);
+        when(databaseProvider.createDatabase(any())).thenReturn(database1, database2);
+
+        databaseContext.setEnvironment(new MockEnvironment().withProperty("zonky.test.database.change-tracking.enabled", "true"));
+        databaseContext.handleContextRefreshed(new ContextRefreshedEvent(applicationContext));
+
+        databaseContext.getDatabase().getConnection().createStatement().executeQuery("select * from person");
+        assertThat(databaseContext.getState()).isEqualTo(FRESH);
+        databaseContext.reset();
+
+        databaseContext.getDatabase().getConnection().createStatement().executeUpdate("delete from person");
+        assertThat(databaseContext.getState()).isEqualTo(DIRTY);
+        databaseContext.reset();
+
+        assertThat(databaseContext.getState()).isEqualTo(FRESH);
+        databaseContext.getDatabase();
+
+        verify(database1, timeout(1000)).close();
+        verify(databaseProvider, times(2)).createDatabase(any());
+    }
+
+    @Test
+    public void rollbackModeShouldResetDatabaseWithoutRefresh() throws SQLException {
+        when(databaseProvider.createDatabase(any())).thenReturn(mock(EmbeddedDatabase.class, RETURNS_MOCKS));
+
+        databaseContext.handleContextRefreshed(new ContextRefreshedEvent(applicationContext));
+        databaseContext.setRollbackEnabled(true);
+
+        EmbeddedDatabase database = databaseContext.getDatabase();
+        assertThat(database).isInstanceOf(RollbackDataSource.class);
+        database.getConnection().close();
+        assertThat(databaseContext.getState()).isEqualTo(DIRTY);
+
+        databaseContext.reset();
+        assertThat(databaseContext.getState()).isEqualTo(FRESH);
+        assertThat(databaseContext.getDatabase()).isSameAs(database);
+
+        verify(databaseProvider, times(1)).createDatabase(any());
+    }
+
+    @Test
+    public void rollbackModeShouldReuseDatabaseLeftByPreviousTestClass() throws SQLException {
+        EmbeddedDatabase database1 = mock(EmbeddedDatabase.class, RETURNS_MOCKS);
+        EmbeddedDatabase database2 = mock(EmbeddedDatabase.class, RETURNS_MOCKS);
+        when(databaseProvider.createDatabase(any())).thenReturn(database1, database2);
+
+        databaseContext.handleContextRefreshed(new ContextRefreshedEvent(applicationContext));
+
+        // a fresh database left by a previous test class is used without any refresh
+        databaseContext.setRollbackEnabled(true);
+        for (int i = 0; i < 2; i++) {
+            databaseContext.handleTestStarted(new TestExecutionStartedEvent(this, MOCK_TEST_METHOD));
+            assertThat(databaseContext.getDatabase()).isInstanceOf(RollbackDataSource.class);
+            databaseContext.handleTestFinished(new TestExecutionFinishedEvent(this, MOCK_TEST_METHOD));
+            databaseContext.reset();
+        }
+        verify(databaseProvider, times(1)).createDatabase(any());
+
+        // a dirty database left by a previous test class is refreshed only after the first test method
+        databaseContext.setRollbackEnabled(false);
+        databaseContext.handleTestStarted(new TestExecutionStartedEvent(this, MOCK_TEST_METHOD));
+        databaseContext.getDatabase().getConnection().close();
+        databaseContext.handleTestFinished(new TestExecutionFinishedEvent(this, MOCK_TEST_METHOD));
+
+        databaseContext.setRollbackEnabled(true);
+        databaseContext.handleTestStarted(new TestExecutionStartedEvent(this, MOCK_TEST_METHOD));
+        assertThat(databaseContext.getDatabase()).isSameAs(database1);
+        databaseContext.handleTestFinished(new TestExecutionFinishedEvent(this, MOCK_TEST_METHOD));
+        databaseContext.reset();
+
+        databaseContext.handleTestStarted(new TestExecutionStartedEvent(this, MOCK_TEST_METHOD));
+        assertThat(databaseContext.getDatabase()).isInstanceOf(RollbackDataSource.class);
+        databaseContext.handleTestFinished(new TestExecutionFinishedEvent(this, MOCK_TEST_METHOD));
+        databaseContext.reset();
+
+        verify(databaseProvider, times(2)).createDatabase(any());
+    }
+
+    @Test
+    public void preparedDatabaseShouldBeRequestedInAdvanceAndPreviousDatabaseClosedInBackground() {
+        EmbeddedDatabase database1 = mock(EmbeddedDatabase.class);
+        EmbeddedDatabase database2 = mock(EmbeddedDatabase.class);
+        when(databaseProvider.createDatabase(any())).thenReturn(database1, database2);
+
+        databaseContext.handleContextRefreshed(new ContextRefreshedEvent(applicationContext));
+        assertThat(databaseContext.getDatabase()).isSameAs(database1);
+
+        databaseContext.reset();
+        verify(databaseProvider, times(1)).createDatabase(any());
+
+        databaseContext.prepareDatabase();
+        verify(databaseProvider, times(2)).createDatabase(any());
+        verify(database1, timeout(1000)).close();
+
+        assertThat(databaseContext.getState()).isEqualTo(FRESH);
+        assertThat(databaseContext.getDatabase()).isSameAs(database2);
+        verifyNoMoreInteractions(databaseProvider);
+    }
+
     @Test
     public void testPreparers() throws Exception {
         when(databaseProvider.createDatabase(any())).thenReturn(mock(EmbeddedDatabase.class));
@@ -259,6 +388,112 @@ public class DefaultDatabaseContextTest {
         verifyNoMoreInteractions(databaseProvider);
     }
 
+    @Test
+    public void leasingModeShouldProvideSeparateDatabaseForEachTestThread() throws InterruptedException {
+        EmbeddedDatabase sharedDatabase = mock(EmbeddedDatabase.class);
+        EmbeddedDatabase leasedDatabase = mock(EmbeddedDatabase.class);
+        EmbeddedDatabase refreshedDatabase = mock(EmbeddedDatabase.class);
+        when(databaseProvider.createDatabase(any())).thenReturn(sharedDatabase, leasedDatabase, refreshedDatabase);
+
+        DatabasePreparer preparer1 = mock(DatabasePreparer.class);
+        DatabasePreparer preparer2 = mock(DatabasePreparer.class);
+
+        databaseContext.setEnvironment(new MockEnvironment().withProperty("zonky.test.database.leasing.enabled", "true"));
+        databaseContext.apply(preparer1);
+        databaseContext.handleContextRefreshed(new ContextRefreshedEvent(applicationContext));
+
+        AtomicReference<EmbeddedDatabase> firstDatabase = new AtomicReference<>();
+        AtomicReference<EmbeddedDatabase> secondDatabase = new AtomicReference<>();
+        runInDifferentThread(() -> {
+            databaseContext.handleTestStarted(new TestExecutionStartedEvent(this, MOCK_TEST_METHOD));
+            firstDatabase.set(databaseContext.getDatabase());
+            databaseContext.handleTestFinished(new TestExecutionFinishedEvent(this, MOCK_TEST_METHOD));
+            assertThat(databaseContext.getState()).isEqualTo(DIRTY);
+
+            databaseContext.reset();
+            databaseContext.apply(preparer2);
+            secondDatabase.set(databaseContext.getDatabase());
+        });
+
+        assertThat(databaseContext.getState()).isEqualTo(FRESH);
+        assertThat(databaseContext.getDatabase()).isSameAs(sharedDatabase);
+        assertThat(firstDatabase.get()).isSameAs(leasedDatabase);
+        assertThat(secondDatabase.get()).isSameAs(refreshedDatabase);
+
+        databaseContext.destroy();
+
+        InOrder inOrder = inOrder(databaseProvider);
+        inOrder.verify(databaseProvider, times(2)).createDatabase(new CompositeDatabasePreparer(ImmutableList.of(preparer1)));
+        inOrder.verify(databaseProvider).createDatabase(new CompositeDatabasePreparer(ImmutableList.of(preparer1, preparer2)));
+
+        verify(leasedDatabase, timeout(1000)).close();
+        verify(refreshedDatabase).close();
+        verify(sharedDatabase).close();
+        verifyNoMoreInteractions(databaseProvider);
+    }
+
+    @Test
+    public void leasingModeShouldHandOutSharedDatabaseToThreadsStartedByTest() throws InterruptedException {
+        EmbeddedDatabase sharedDatabase = mock(EmbeddedDatabase.class);
+        EmbeddedDatabase leasedDatabase = mock(EmbeddedDatabase.class);
+        when(databaseProvider.createDatabase(any())).thenReturn(sharedDatabase, leasedDatabase);
+
+        databaseContext.setEnvironment(new MockEnvironment().withProperty("zonky.test.database.leasing.enabled", "true"));
+        databaseContext.handleContextRefreshed(new ContextRefreshedEvent(applicationContext));
+        assertThat(databaseContext.getDatabase()).isSameAs(sharedDatabase);
+
+        AtomicReference<EmbeddedDatabase> testDatabase = new AtomicReference<>();
+        AtomicReference<EmbeddedDatabase> asyncDatabase = new AtomicReference<>();
+        AtomicReference<Thread> asyncThread = new AtomicReference<>();
+        runInDifferentThread(() -> {
+            databaseContext.handleTestStarted(new TestExecutionStartedEvent(this, MOCK_TEST_METHOD));
+            testDatabase.set(databaseContext.getDatabase());
+            try {
+                runInDifferentThread(() -> {
+                    asyncThread.set(Thread.currentThread());
+                    asyncDatabase.set(databaseContext.getDatabase());
+                });
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertThat(testDatabase.get()).isSameAs(leasedDatabase);
+        assertThat(asyncDatabase.get()).isSameAs(sharedDatabase);
+        assertThat(databaseContext.unleasedThreads).containsExactly(asyncThread.get());
+    }
+
+    @Test
+    public void leasingModeShouldRollbackLeasedDatabaseWithoutRefresh() throws InterruptedException {
+        when(databaseProvider.createDatabase(any())).thenReturn(mock(EmbeddedDatabase.class, RETURNS_MOCKS));
+
+        databaseContext.setEnvironment(new MockEnvironment().withProperty("zonky.test.database.leasing.enabled", "true"));
+        databaseContext.handleContextRefreshed(new ContextRefreshedEvent(applicationContext));
+
+        AtomicReference<EmbeddedDatabase> database = new AtomicReference<>();
+        AtomicReference<DatabaseContext.ContextState> dirtyState = new AtomicReference<>();
+        AtomicReference<DatabaseContext.ContextState> resetState = new AtomicReference<>();
+        AtomicReference<EmbeddedDatabase> resetDatabase = new AtomicReference<>();
+        runInDifferentThread(() -> {
+            databaseContext.setRollbackEnabled(true);
+            databaseContext.handleTestStarted(new TestExecutionStartedEvent(this, MOCK_TEST_METHOD));
+
+            database.set(databaseContext.getDatabase());
+            dirtyState.set(databaseContext.getState());
+
+            databaseContext.reset();
+            resetState.set(databaseContext.getState());
+            resetDatabase.set(databaseContext.getDatabase());
+        });
+
+        assertThat(database.get()).isInstanceOf(RollbackDataSource.class);
+        assertThat(dirtyState.get()).isEqualTo(DIRTY);
+        assertThat(resetState.get()).isEqualTo(FRESH);
+        assertThat(resetDatabase.get()).isSameAs(database.get());
+
+        verify(databaseProvider, times(1)).createDatabase(any());
+    }
+
     private static void runInDifferentThread(Runnable runnable) throws InterruptedException {
         Thread thread = new Thread(runnable);
         thread.start();
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.context;
+
+import com.google.common.collect.ImmutableList;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import io.zonky.test.db.preparer.CompositeDatabasePreparer;
+import io.zonky.test.db.preparer.DatabasePreparer;
+import io.zonky.test.db.provider.EmbeddedDatabase;
+import io.zonky.test.db.provider.postgres.ZonkyPostgresDatabaseProvider;
+import io.zonky.test.db.support.TestDatabasePreparer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class IncrementalResetPreparerTest {
+
+    @Mock
+    private ObjectProvider<List<Consumer<EmbeddedPostgres.Builder>>> databaseCustomizers;
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void setUp() {
+        when(databaseCustomizers.getIfAvailable()).thenReturn(Collections.emptyList());
+        ZonkyPostgresDatabaseProvider provider = new ZonkyPostgresDatabaseProvider(new MockEnvironment(), databaseCustomizers);
+
+        DatabasePreparer preparer = TestDatabasePreparer.of(dataSource -> {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            jdbcTemplate.update("create table author (id bigint generated always as identity primary key, name text not null)");
+            jdbcTemplate.update("create table book (id serial primary key, author_id bigint not null references author (id), title text not null)");
+            jdbcTemplate.update("create table genre (id int primary key, name text not null)");
+            jdbcTemplate.update("insert into author (name) values ('Karel Čapek')");
+            jdbcTemplate.update("insert into book (author_id, title) values (1, 'R.U.R.')");
+            jdbcTemplate.update("insert into genre (id, name) values (1, 'Science Fiction')");
+            jdbcTemplate.update("create table review (book_id int not null, rating int not null) partition by range (rating)");
+            jdbcTemplate.update("create table review_negative partition of review for values from (1) to (3)");
+            jdbcTemplate.update("create table review_positive partition of review for values from (3) to (6)");
+            jdbcTemplate.update("insert into review (book_id, rating) values (1, 2), (1, 5)");
+        });
+
+        database = provider.createDatabase(new CompositeDatabasePreparer(ImmutableList.of(preparer, IncrementalResetPreparer.INSTANCE)));
+        jdbcTemplate = new JdbcTemplate(database);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+    }
+
+    @Test
+    public void modifiedTablesAndSequencesShouldBeRestored() {
+        jdbcTemplate.update("insert into author (name) values ('Jaroslav Hašek')");
+        jdbcTemplate.update("update book set title = 'War with the Newts'");
+        jdbcTemplate.update("insert into book (author_id, title) values (2, 'The Good Soldier Švejk')");
+
+        assertThat(IncrementalResetPreparer.restore(database)).isTrue();
+
+        assertThat(jdbcTemplate.queryForList("select name from author order by id", String.class)).containsExactly("Karel Čapek");
+        assertThat(jdbcTemplate.queryForList("select title from book order by id", String.class)).containsExactly("R.U.R.");
+        assertThat(jdbcTemplate.queryForList("select name from genre order by id", String.class)).containsExactly("Science Fiction");
+
+        assertThat(jdbcTemplate.queryForObject("insert into author (name) values ('Jaroslav Hašek') returning id", Long.class)).isEqualTo(2L);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from zonky_tracking.baseline_tables", Integer.class)).isEqualTo(2);
+
+        assertThat(IncrementalResetPreparer.restore(database)).isTrue();
+        assertThat(jdbcTemplate.queryForObject("select count(*) from author", Integer.class)).isEqualTo(1);
+    }
+
+    @Test
+    public void partitionedTablesShouldBeRestored() {
+        jdbcTemplate.update("insert into review (book_id, rating) values (1, 4)");
+        jdbcTemplate.update("update review set rating = 1 where rating = 5");
+
+        assertThat(IncrementalResetPreparer.restore(database)).isTrue();
+        assertThat(jdbcTemplate.queryForList("select rating from review order by rating", Integer.class)).containsExactly(2, 5);
+        assertThat(jdbcTemplate.queryForList("select rating from only review_negative", Integer.class)).containsExactly(2);
+
+        jdbcTemplate.update("update review_negative set rating = 1");
+        jdbcTemplate.update("delete from review_positive where rating = 5");
+
+        assertThat(IncrementalResetPreparer.restore(database)).isTrue();
+        assertThat(jdbcTemplate.queryForList("select rating from review order by rating", Integer.class)).containsExactly(2, 5);
+    }
+
+    @Test
+    public void schemaChangesShouldBeRejected() {
+        jdbcTemplate.update("alter table genre add column description text");
+
+        assertThat(IncrementalResetPreparer.restore(database)).isFalse();
+    }
+}
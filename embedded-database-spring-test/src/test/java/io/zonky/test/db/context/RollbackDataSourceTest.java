@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.context;
+
+import io.zonky.test.db.provider.EmbeddedDatabase;
+import io.zonky.test.db.provider.h2.H2DatabaseProvider;
+import io.zonky.test.db.support.TestDatabasePreparer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RollbackDataSourceTest {
+
+    private EmbeddedDatabase database;
+    private RollbackDataSource dataSource;
+
+    @Before
+    public void setUp() {
+        database = new H2DatabaseProvider().createDatabase(TestDatabasePreparer.of(dataSource -> {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            jdbcTemplate.update("create table prime_number (number int primary key not null)");
+        }));
+        dataSource = RollbackDataSource.wrap(database);
+    }
+
+    @After
+    public void tearDown() {
+        dataSource.release();
+        database.close();
+    }
+
+    @Test
+    public void changesShouldBeRolledBack() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.update("insert into prime_number (number) values (?)", 2);
+        jdbcTemplate.update("insert into prime_number (number) values (?)", 3);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from prime_number", Integer.class)).isEqualTo(2);
+
+        assertThat(dataSource.rollback()).isTrue();
+        assertThat(jdbcTemplate.queryForObject("select count(*) from prime_number", Integer.class)).isEqualTo(0);
+
+        jdbcTemplate.update("insert into prime_number (number) values (?)", 5);
+        assertThat(dataSource.rollback()).isTrue();
+        assertThat(countRows(database)).isEqualTo(0);
+    }
+
+    @Test
+    public void applicationRollbackShouldBeEmulated() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+        jdbcTemplate.update("insert into prime_number (number) values (?)", 2);
+        transactionTemplate.execute(status -> {
+            jdbcTemplate.update("insert into prime_number (number) values (?)", 3);
+            status.setRollbackOnly();
+            return null;
+        });
+
+        assertThat(jdbcTemplate.queryForList("select number from prime_number", Integer.class)).containsExactly(2);
+        assertThat(dataSource.rollback()).isTrue();
+        assertThat(countRows(database)).isEqualTo(0);
+    }
+
+    @Test
+    public void explicitCommitShouldSwitchToPassThroughMode() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+        transactionTemplate.execute(status -> jdbcTemplate.update("insert into prime_number (number) values (?)", 2));
+
+        assertThat(dataSource.rollback()).isFalse();
+        assertThat(countRows(database)).isEqualTo(1);
+    }
+
+    @Test
+    public void concurrentConnectionShouldSwitchToPassThroughMode() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("insert into prime_number (number) values (2)");
+            assertThat(countRows(dataSource)).isEqualTo(1);
+        }
+
+        assertThat(dataSource.rollback()).isFalse();
+        assertThat(countRows(database)).isEqualTo(1);
+    }
+
+    private static int countRows(DataSource dataSource) {
+        return new JdbcTemplate(dataSource).queryForObject("select count(*) from prime_number", Integer.class);
+    }
+}
@@ -1,5 +1,6 @@
 package io.zonky.test.db.preparer;
 
+import com.google.common.base.Strings;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
 import org.mockito.InOrder;
@@ -10,9 +11,13 @@ import org.springframework.util.StreamUtils;
 import javax.sql.DataSource;
 import javax.sql.rowset.serial.SerialBlob;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.CharArrayReader;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.NotSerializableException;
 import java.io.Reader;
+import java.lang.reflect.Proxy;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.Connection;
@@ -22,11 +27,15 @@ import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Time;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static com.google.common.base.Preconditions.checkState;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
@@ -402,6 +411,285 @@ public class RecordingDataSourceTest {
         assertThat(databasePreparer1).isEqualTo(databasePreparer2);
     }
 
+    @Test
+    public void testReplayToDifferentDataSourceType() throws SQLException {
+        PGSimpleDataSource targetDataSource = mock(PGSimpleDataSource.class, RETURNS_MOCKS);
+        RecordingDataSource recordingDataSource = RecordingDataSource.wrap(targetDataSource);
+
+        Connection connection = recordingDataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement("insert into person values (?, ?)");
+        statement.setLong(1, 1L);
+        statement.setString(2, "Dave");
+        statement.executeUpdate();
+        statement.close();
+        connection.close();
+
+        DataSource mockDataSource = mock(DataSource.class);
+        Connection mockConnection = mock(Connection.class);
+        PreparedStatement mockStatement = mock(PreparedStatement.class);
+
+        when(mockDataSource.getConnection()).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+
+        DatabasePreparer preparer = recordingDataSource.getPreparer();
+        preparer.prepare(mockDataSource);
+        preparer.prepare(mockDataSource);
+
+        InOrder inOrder = inOrder(mockDataSource, mockConnection, mockStatement);
+        for (int i = 0; i < 2; i++) {
+            inOrder.verify(mockDataSource).getConnection();
+            inOrder.verify(mockConnection).prepareStatement("insert into person values (?, ?)");
+            inOrder.verify(mockStatement).setLong(1, 1L);
+            inOrder.verify(mockStatement).setString(2, "Dave");
+            inOrder.verify(mockStatement).executeUpdate();
+            inOrder.verify(mockStatement).close();
+            inOrder.verify(mockConnection).close();
+        }
+    }
+
+    @Test
+    public void testStatementBatching() throws SQLException {
+        RecordingDataSource recordingDataSource = RecordingDataSource.wrap(mock(DataSource.class, RETURNS_MOCKS));
+
+        Connection connection = recordingDataSource.getConnection();
+        connection.setAutoCommit(true);
+        for (String sql : Arrays.asList("create table person", "insert into person values (1)", "insert into person values (2)")) {
+            Statement statement = connection.createStatement();
+            statement.execute(sql);
+            statement.close();
+        }
+        connection.close();
+
+        DataSource mockDataSource = mock(DataSource.class);
+        Connection mockConnection = mock(Connection.class);
+        Statement mockStatement = mock(Statement.class);
+
+        when(mockDataSource.getConnection()).thenReturn(mockConnection);
+        when(mockConnection.createStatement()).thenReturn(mockStatement);
+
+        DatabasePreparer preparer = recordingDataSource.getPreparer();
+        preparer.prepare(mockDataSource);
+
+        InOrder inOrder = inOrder(mockDataSource, mockConnection, mockStatement);
+        inOrder.verify(mockDataSource).getConnection();
+        inOrder.verify(mockConnection).setAutoCommit(true);
+        inOrder.verify(mockConnection).setAutoCommit(false);
+        inOrder.verify(mockConnection).createStatement();
+        inOrder.verify(mockStatement).addBatch("create table person");
+        inOrder.verify(mockStatement).addBatch("insert into person values (1)");
+        inOrder.verify(mockStatement).addBatch("insert into person values (2)");
+        inOrder.verify(mockStatement).executeBatch();
+        inOrder.verify(mockStatement).close();
+        inOrder.verify(mockConnection).commit();
+        inOrder.verify(mockConnection).setAutoCommit(true);
+        inOrder.verify(mockConnection).close();
+
+        verify(mockStatement, never()).execute(anyString());
+    }
+
+    @Test
+    public void testPreparedStatementBatching() throws SQLException {
+        RecordingDataSource recordingDataSource = RecordingDataSource.wrap(mock(DataSource.class, RETURNS_MOCKS));
+
+        Connection connection = recordingDataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement("insert into person values (?)");
+        for (int i = 1; i <= 3; i++) {
+            statement.setInt(1, i);
+            statement.executeUpdate();
+        }
+        statement.close();
+        connection.close();
+
+        DataSource mockDataSource = mock(DataSource.class);
+        Connection mockConnection = mock(Connection.class);
+        PreparedStatement mockStatement = mock(PreparedStatement.class);
+
+        when(mockDataSource.getConnection()).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+
+        DatabasePreparer preparer = recordingDataSource.getPreparer();
+        preparer.prepare(mockDataSource);
+
+        InOrder inOrder = inOrder(mockDataSource, mockConnection, mockStatement);
+        inOrder.verify(mockConnection).prepareStatement("insert into person values (?)");
+        for (int i = 1; i <= 3; i++) {
+            inOrder.verify(mockStatement).setInt(1, i);
+            inOrder.verify(mockStatement).addBatch();
+        }
+        inOrder.verify(mockStatement).executeBatch();
+        inOrder.verify(mockStatement).close();
+        inOrder.verify(mockConnection).close();
+
+        verify(mockStatement, never()).executeUpdate();
+        verify(mockConnection, never()).setAutoCommit(false);
+    }
+
+    @Test
+    public void testUnusedQueriesRemoval() throws SQLException {
+        RecordingDataSource recordingDataSource = RecordingDataSource.wrap(mock(DataSource.class, RETURNS_MOCKS));
+
+        Connection connection = recordingDataSource.getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("select count(*) from person where id in (1, 2)");
+        resultSet.next();
+        resultSet.getInt(1);
+        resultSet.close();
+        statement.executeQuery("select nextval('person_id_seq')");
+        statement.executeUpdate("insert into person values (1)");
+        statement.close();
+        connection.close();
+
+        DataSource mockDataSource = mock(DataSource.class);
+        Connection mockConnection = mock(Connection.class);
+        Statement mockStatement = mock(Statement.class);
+
+        when(mockDataSource.getConnection()).thenReturn(mockConnection);
+        when(mockConnection.createStatement()).thenReturn(mockStatement);
+        when(mockStatement.executeQuery(anyString())).thenReturn(mock(ResultSet.class));
+
+        DatabasePreparer preparer = recordingDataSource.getPreparer();
+        preparer.prepare(mockDataSource);
+
+        InOrder inOrder = inOrder(mockDataSource, mockConnection, mockStatement);
+        inOrder.verify(mockConnection).createStatement();
+        inOrder.verify(mockStatement).executeQuery("select nextval('person_id_seq')");
+        inOrder.verify(mockStatement).executeUpdate("insert into person values (1)");
+        inOrder.verify(mockStatement).close();
+        inOrder.verify(mockConnection).close();
+
+        verify(mockStatement, never()).executeQuery("select count(*) from person where id in (1, 2)");
+    }
+
+    @Test
+    public void testSerialization() throws SQLException, IOException {
+        RecordingDataSource recordingDataSource = RecordingDataSource.wrap(mock(DataSource.class, RETURNS_MOCKS));
+
+        Connection connection = recordingDataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement("insert into person values (?, ?, ?, ?)");
+        statement.setLong(1, 1L);
+        statement.setString(2, "Dave");
+        statement.setTime(3, new Time(0));
+        statement.setBinaryStream(4, new ByteArrayInputStream("input".getBytes(UTF_8)));
+        statement.executeUpdate();
+        statement.close();
+        connection.close();
+
+        ReplayableDatabasePreparer recordedPreparer = recordingDataSource.getPreparer();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        recordedPreparer.writeTo(output);
+        ReplayableDatabasePreparer restoredPreparer = ReplayableDatabasePreparer.readFrom(new ByteArrayInputStream(output.toByteArray()));
+
+        assertThat(restoredPreparer.getContentHash()).isNotNull().isEqualTo(recordedPreparer.getContentHash());
+        assertThat(restoredPreparer).isEqualTo(recordedPreparer);
+        assertThat(restoredPreparer.hashCode()).isEqualTo(recordedPreparer.hashCode());
+
+        DataSource mockDataSource = mock(DataSource.class);
+        Connection mockConnection = mock(Connection.class);
+        PreparedStatement mockStatement = mock(PreparedStatement.class);
+
+        when(mockDataSource.getConnection()).thenReturn(mockConnection);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+
+        restoredPreparer.prepare(mockDataSource);
+
+        InOrder inOrder = inOrder(mockDataSource, mockConnection, mockStatement);
+        inOrder.verify(mockDataSource).getConnection();
+        inOrder.verify(mockConnection).prepareStatement("insert into person values (?, ?, ?, ?)");
+        inOrder.verify(mockStatement).setLong(1, 1L);
+        inOrder.verify(mockStatement).setString(2, "Dave");
+        inOrder.verify(mockStatement).setTime(3, new Time(0));
+        inOrder.verify(mockStatement).setBinaryStream(eq(4), any(InputStream.class));
+        inOrder.verify(mockStatement).executeUpdate();
+        inOrder.verify(mockStatement).close();
+        inOrder.verify(mockConnection).close();
+    }
+
+    @Test
+    public void testNonSerializableArguments() throws SQLException {
+        RecordingDataSource recordingDataSource = RecordingDataSource.wrap(mock(DataSource.class, RETURNS_MOCKS));
+
+        Connection connection = recordingDataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement("insert into person values (?)");
+        statement.setObject(1, new Object());
+        statement.executeUpdate();
+        statement.close();
+        connection.close();
+
+        ReplayableDatabasePreparer preparer = recordingDataSource.getPreparer();
+
+        assertThat(preparer.getContentHash()).isNull();
+        assertThatThrownBy(() -> preparer.writeTo(new ByteArrayOutputStream())).isInstanceOf(NotSerializableException.class);
+    }
+
+    @Test
+    public void testLargeStreamArguments() throws SQLException, IOException {
+        byte[] bytes = new byte[3 * 1024 * 1024];
+        new Random(42).nextBytes(bytes);
+        char[] chars = Strings.repeat("large \u017Ee\uD83D\uDE00 content ", 100000).toCharArray();
+
+        ReplayableDatabasePreparer recordedPreparer1 = recordLargeStreams(bytes, chars);
+        ReplayableDatabasePreparer recordedPreparer2 = recordLargeStreams(bytes, chars);
+
+        assertThat(recordedPreparer1).isEqualTo(recordedPreparer2);
+        assertThat(recordedPreparer1.hashCode()).isEqualTo(recordedPreparer2.hashCode());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        recordedPreparer1.writeTo(output);
+        ReplayableDatabasePreparer restoredPreparer = ReplayableDatabasePreparer.readFrom(new ByteArrayInputStream(output.toByteArray()));
+
+        assertThat(restoredPreparer).isEqualTo(recordedPreparer1);
+
+        for (ReplayableDatabasePreparer preparer : Arrays.asList(recordedPreparer1, restoredPreparer)) {
+            DataSource mockDataSource = mock(DataSource.class);
+            Connection mockConnection = mock(Connection.class);
+            PreparedStatement mockStatement = mock(PreparedStatement.class);
+
+            when(mockDataSource.getConnection()).thenReturn(mockConnection);
+            when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+
+            List<Object> replayedContents = new ArrayList<>();
+            doAnswer(invocation -> replayedContents.add(StreamUtils.copyToByteArray(invocation.getArgument(1, InputStream.class))))
+                    .when(mockStatement).setBinaryStream(eq(1), any(InputStream.class));
+            doAnswer(invocation -> replayedContents.add(FileCopyUtils.copyToString(invocation.getArgument(1, Reader.class))))
+                    .when(mockStatement).setCharacterStream(eq(2), any(Reader.class));
+
+            preparer.prepare(mockDataSource);
+            preparer.prepare(mockDataSource);
+
+            assertThat(replayedContents).hasSize(4);
+            for (int i = 0; i < replayedContents.size(); i += 2) {
+                assertThat((byte[]) replayedContents.get(i)).isEqualTo(bytes);
+                assertThat((String) replayedContents.get(i + 1)).isEqualTo(new String(chars));
+            }
+        }
+    }
+
+    private static ReplayableDatabasePreparer recordLargeStreams(byte[] bytes, char[] chars) throws SQLException {
+        RecordingDataSource recordingDataSource = RecordingDataSource.wrap(mock(DataSource.class, RETURNS_MOCKS));
+
+        Connection connection = recordingDataSource.getConnection();
+        PreparedStatement statement = connection.prepareStatement("insert into document values (?, ?)");
+        statement.setBinaryStream(1, new ByteArrayInputStream(bytes));
+        statement.setCharacterStream(2, new CharArrayReader(chars));
+        statement.executeUpdate();
+        statement.close();
+        connection.close();
+
+        return recordingDataSource.getPreparer();
+    }
+
+    @Test
+    public void testRecordingProxyClassesAreReused() throws SQLException {
+        RecordingDataSource recordingDataSource = RecordingDataSource.wrap(mock(DataSource.class, RETURNS_MOCKS));
+
+        Connection connection1 = recordingDataSource.getConnection();
+        Connection connection2 = recordingDataSource.getConnection();
+
+        assertThat(Proxy.isProxyClass(connection1.getClass())).isTrue();
+        assertThat(connection1.getClass()).isSameAs(connection2.getClass());
+        assertThat(connection1).isEqualTo(connection1).isNotEqualTo(connection2);
+    }
+
     @Test
     public void testProxyTargetClass() {
         PGSimpleDataSource targetDataSource = new PGSimpleDataSource();
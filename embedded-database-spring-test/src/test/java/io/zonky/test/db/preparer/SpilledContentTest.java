@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.preparer;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpilledContentTest {
+
+    @Test
+    public void identicalContentsShouldBeShared() throws Exception {
+        byte[] payload = payload((byte) 1);
+
+        SpilledContent content1 = SpilledContent.spill(payload, 10, new ByteArrayInputStream(payload, 10, payload.length - 10));
+        SpilledContent content2 = SpilledContent.spill(payload, payload.length, new ByteArrayInputStream(new byte[0]));
+
+        assertThat(content2).isSameAs(content1);
+        assertThat(content1.size()).isEqualTo(payload.length);
+        assertThat(ByteStreams.toByteArray(content1.openStream())).isEqualTo(payload);
+    }
+
+    @Test
+    public void releasedContentsShouldNotBeRetained() throws Exception {
+        byte[] payload = payload((byte) 2);
+
+        WeakReference<SpilledContent> reference = new WeakReference<>(
+                SpilledContent.spill(payload, payload.length, new ByteArrayInputStream(new byte[0])));
+
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(reference.get()).isNull();
+
+        SpilledContent content = SpilledContent.spill(payload, payload.length, new ByteArrayInputStream(new byte[0]));
+        assertThat(ByteStreams.toByteArray(content.openStream())).isEqualTo(payload);
+    }
+
+    private static byte[] payload(byte value) {
+        byte[] payload = new byte[SpilledContent.SPILL_THRESHOLD + 1];
+        Arrays.fill(payload, value);
+        return payload;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider;
+
+import io.zonky.test.db.provider.common.PriorityThreadPoolTaskExecutor;
+import io.zonky.test.db.provider.support.ConnectionAdmissionController;
+import io.zonky.test.db.provider.support.ConnectionPermits;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.core.Ordered.LOWEST_PRECEDENCE;
+
+public class ConnectionAdmissionControllerTest {
+
+    private PriorityThreadPoolTaskExecutor backgroundExecutor;
+
+    @Before
+    public void setUp() {
+        backgroundExecutor = new PriorityThreadPoolTaskExecutor();
+        backgroundExecutor.setCorePoolSize(4);
+        backgroundExecutor.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        backgroundExecutor.shutdown();
+    }
+
+    @Test
+    public void backgroundRequestsShouldNotUseReservedConnections() throws Exception {
+        ConnectionAdmissionController controller = new ConnectionAdmissionController(3, 1, 10);
+        ConnectionPermits permits = controller.forDatabase();
+
+        acquireInBackground(permits).get(1, TimeUnit.SECONDS);
+        acquireInBackground(permits).get(1, TimeUnit.SECONDS);
+
+        Future<?> blockedRequest = acquireInBackground(permits);
+        assertThatThrownBy(() -> blockedRequest.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+
+        permits.acquire();
+        assertThat(controller.getActiveConnections()).isEqualTo(3);
+
+        permits.release();
+        permits.release();
+        blockedRequest.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void backgroundRequestsShouldBeLimitedByDatabaseQuota() throws Exception {
+        ConnectionAdmissionController controller = new ConnectionAdmissionController(10, 1, 2);
+        ConnectionPermits permits1 = controller.forDatabase();
+        ConnectionPermits permits2 = controller.forDatabase();
+
+        acquireInBackground(permits1).get(1, TimeUnit.SECONDS);
+        acquireInBackground(permits1).get(1, TimeUnit.SECONDS);
+
+        Future<?> blockedRequest = acquireInBackground(permits1);
+        assertThatThrownBy(() -> blockedRequest.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+
+        acquireInBackground(permits2).get(1, TimeUnit.SECONDS);
+
+        permits1.release();
+        blockedRequest.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void waitTimeShouldBeRecorded() throws Exception {
+        ConnectionAdmissionController controller = new ConnectionAdmissionController(1, 0, 1);
+        ConnectionPermits permits = controller.forDatabase();
+
+        permits.acquire();
+        assertThat(controller.getContendedAcquisitionCount()).isZero();
+
+        Thread thread = new Thread(permits::acquire);
+        thread.start();
+        Thread.sleep(100);
+        permits.release();
+        thread.join(1000);
+
+        assertThat(controller.getAcquisitionCount()).isEqualTo(2);
+        assertThat(controller.getContendedAcquisitionCount()).isEqualTo(1);
+        assertThat(controller.getMaxWaitTime().toMillis()).isGreaterThanOrEqualTo(50);
+        assertThat(controller.getTotalWaitTime()).isEqualTo(controller.getMaxWaitTime());
+    }
+
+    private Future<?> acquireInBackground(ConnectionPermits permits) {
+        return backgroundExecutor.submitListenable(() -> {
+            permits.acquire();
+            return null;
+        }, LOWEST_PRECEDENCE);
+    }
+}
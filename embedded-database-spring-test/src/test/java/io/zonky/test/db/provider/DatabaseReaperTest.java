@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider;
+
+import io.zonky.test.db.provider.support.DatabaseReaper;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class DatabaseReaperTest {
+
+    @Test
+    public void dropsShouldBeBatchedOnSingleConnection() throws Exception {
+        Connection connection = mock(Connection.class);
+        AtomicInteger openedConnections = new AtomicInteger();
+        DatabaseReaper reaper = new DatabaseReaper(() -> {
+            openedConnections.incrementAndGet();
+            return connection;
+        }, e -> false);
+
+        // the reaper thread is blocked by another drop, so that all the following drops are queued before it takes them
+        CountDownLatch reaperBlocked = new CountDownLatch(1);
+        CountDownLatch reaperReleased = new CountDownLatch(1);
+        new DatabaseReaper(null, e -> false).drop("blocking", c -> {
+            reaperBlocked.countDown();
+            reaperReleased.await();
+        });
+        assertThat(reaperBlocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+        List<Connection> usedConnections = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            reaper.drop("database" + i, c -> {
+                usedConnections.add(c);
+                latch.countDown();
+            });
+        }
+        assertThat(reaper.getPendingDrops()).isEqualTo(3);
+
+        // the delay of all the drops elapses while the reaper is blocked, regardless of how long it took to request them
+        Thread.sleep(200);
+        reaperReleased.countDown();
+
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(usedConnections).containsExactly(connection, connection, connection);
+        assertThat(openedConnections.get()).isEqualTo(1);
+        verify(connection, timeout(1000).times(1)).close();
+    }
+
+    @Test
+    public void dropsShouldBeRetriedWhileDatabaseIsInUse() throws Exception {
+        DatabaseReaper reaper = new DatabaseReaper(null, e -> "55006".equals(e.getSQLState()));
+
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+        reaper.drop("database", c -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new SQLException("database is being accessed by other users", "55006");
+            }
+            latch.countDown();
+        });
+
+        assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(attempts.get()).isEqualTo(3);
+        assertThat(reaper.getPendingDrops()).isZero();
+    }
+
+    @Test
+    public void drainShouldExecutePendingDrops() {
+        DatabaseReaper reaper = new DatabaseReaper(null, e -> true);
+
+        AtomicInteger attempts = new AtomicInteger();
+        reaper.drop("database", c -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new SQLException("database is being accessed by other users", "55006");
+            }
+        });
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((attempts.get() == 0 || reaper.getPendingDrops() == 0) && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+
+        reaper.drain();
+
+        assertThat(attempts.get()).isEqualTo(2);
+        assertThat(reaper.getPendingDrops()).isZero();
+    }
+}
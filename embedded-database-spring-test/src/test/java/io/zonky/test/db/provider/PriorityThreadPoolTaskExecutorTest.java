@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider;
+
+import io.zonky.test.db.provider.common.PriorityThreadPoolTaskExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static io.zonky.test.db.provider.common.PriorityThreadPoolTaskExecutor.DEFAULT_PRIORITY;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.core.Ordered.HIGHEST_PRECEDENCE;
+import static org.springframework.core.Ordered.LOWEST_PRECEDENCE;
+
+public class PriorityThreadPoolTaskExecutorTest {
+
+    private PriorityThreadPoolTaskExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new PriorityThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void tasksShouldBeExecutedInOrderOfPriorities() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        List<Integer> priorities = new CopyOnWriteArrayList<>();
+        Future<?> last = executor.submitListenable(() -> priorities.add(PriorityThreadPoolTaskExecutor.currentPriority(0)), LOWEST_PRECEDENCE);
+        executor.submit(() -> priorities.add(PriorityThreadPoolTaskExecutor.currentPriority(0)));
+        executor.submitListenable(() -> priorities.add(PriorityThreadPoolTaskExecutor.currentPriority(0)), HIGHEST_PRECEDENCE);
+        latch.countDown();
+
+        last.get(1, TimeUnit.SECONDS);
+
+        assertThat(priorities).containsExactly(HIGHEST_PRECEDENCE, DEFAULT_PRIORITY, LOWEST_PRECEDENCE);
+    }
+
+    @Test
+    public void currentPriorityShouldFallBackToDefaultOutsideOfTasks() {
+        assertThat(PriorityThreadPoolTaskExecutor.currentPriority(HIGHEST_PRECEDENCE)).isEqualTo(HIGHEST_PRECEDENCE);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.zonky.test.db.provider;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.zonky.test.db.preparer.DatabasePreparer;
+import io.zonky.test.db.provider.support.ShardedDatabaseTemplate;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static io.zonky.test.db.provider.support.ShardedDatabaseTemplate.TEMPLATE_AFFINITY_THRESHOLD;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ShardedDatabaseTemplateTest {
+
+    private static final List<String> shards = ImmutableList.of("shard1", "shard2");
+
+    @Test
+    public void shardHoldingTemplateShouldBePreferredUnderSimilarLoad() {
+        DatabaseRequest request = DatabaseRequest.of(mock(DatabasePreparer.class), new ShardedDatabaseTemplate<>("shard2", this::createTemplate));
+        Map<String, Integer> loads = ImmutableMap.of("shard1", 0, "shard2", TEMPLATE_AFFINITY_THRESHOLD);
+
+        assertThat(ShardedDatabaseTemplate.selectShard(shards, request, loads::get)).isEqualTo("shard2");
+    }
+
+    @Test
+    public void leastLoadedShardShouldBeSelectedWhenLoadDifferenceExceedsThreshold() {
+        DatabaseRequest request = DatabaseRequest.of(mock(DatabasePreparer.class), new ShardedDatabaseTemplate<>("shard2", this::createTemplate));
+        Map<String, Integer> loads = ImmutableMap.of("shard1", 0, "shard2", TEMPLATE_AFFINITY_THRESHOLD + 1);
+
+        assertThat(ShardedDatabaseTemplate.selectShard(shards, request, loads::get)).isEqualTo("shard1");
+    }
+
+    @Test
+    public void leastLoadedShardShouldBeSelectedWithoutTemplate() {
+        DatabaseRequest request = DatabaseRequest.of(mock(DatabasePreparer.class));
+        Map<String, Integer> loads = ImmutableMap.of("shard1", 2, "shard2", 1);
+
+        assertThat(ShardedDatabaseTemplate.selectShard(shards, request, loads::get)).isEqualTo("shard2");
+    }
+
+    private DatabaseTemplate createTemplate(String shard) {
+        DatabaseTemplate template = mock(DatabaseTemplate.class);
+        when(template.getTemplateName()).thenReturn("template_" + shard);
+        return template;
+    }
+}
@@ -74,8 +74,11 @@ public class DockerMariaDBDatabaseProviderTest {
         assertThat(dataSource2).isNotNull().isExactlyInstanceOf(BlockingDatabaseWrapper.class);
         assertThat(dataSource3).isNotNull().isExactlyInstanceOf(BlockingDatabaseWrapper.class);
 
-        assertThat(getPort(dataSource1)).isNotEqualTo(getPort(dataSource2));
-        assertThat(getPort(dataSource2)).isNotEqualTo(getPort(dataSource3));
+        assertThat(getPort(dataSource1)).isEqualTo(getPort(dataSource2));
+        assertThat(getPort(dataSource2)).isEqualTo(getPort(dataSource3));
+
+        assertThat(getDatabaseName(dataSource1)).isNotEqualTo(getDatabaseName(dataSource2));
+        assertThat(getDatabaseName(dataSource2)).isNotEqualTo(getDatabaseName(dataSource3));
 
         JdbcTemplate jdbcTemplate1 = new JdbcTemplate(dataSource1);
         jdbcTemplate1.update("insert into prime_number (number) values (?)", 2);
@@ -240,6 +243,10 @@ public class DockerMariaDBDatabaseProviderTest {
         return dataSource.unwrap(MariaDBEmbeddedDatabase.class).getPortNumber();
     }
 
+    private static String getDatabaseName(DataSource dataSource) throws SQLException {
+        return dataSource.unwrap(MariaDBEmbeddedDatabase.class).getDatabaseName();
+    }
+
     private static MariaDBContainerCustomizer mariadbContainerCustomizer(long timeout) {
         return container -> container.withStartupTimeout(Duration.ofSeconds(timeout));
     }
@@ -74,8 +74,11 @@ public class DockerMySQLDatabaseProviderTest {
         assertThat(dataSource2).isNotNull().isExactlyInstanceOf(BlockingDatabaseWrapper.class);
         assertThat(dataSource3).isNotNull().isExactlyInstanceOf(BlockingDatabaseWrapper.class);
 
-        assertThat(getPort(dataSource1)).isNotEqualTo(getPort(dataSource2));
-        assertThat(getPort(dataSource2)).isNotEqualTo(getPort(dataSource3));
+        assertThat(getPort(dataSource1)).isEqualTo(getPort(dataSource2));
+        assertThat(getPort(dataSource2)).isEqualTo(getPort(dataSource3));
+
+        assertThat(getDatabaseName(dataSource1)).isNotEqualTo(getDatabaseName(dataSource2));
+        assertThat(getDatabaseName(dataSource2)).isNotEqualTo(getDatabaseName(dataSource3));
 
         JdbcTemplate jdbcTemplate1 = new JdbcTemplate(dataSource1);
         jdbcTemplate1.update("insert into prime_number (number) values (?)", 2);
@@ -244,6 +247,10 @@ public class DockerMySQLDatabaseProviderTest {
         return dataSource.unwrap(MysqlDataSource.class).getPortNumber();
     }
 
+    private static String getDatabaseName(DataSource dataSource) throws SQLException {
+        return dataSource.unwrap(MysqlDataSource.class).getDatabaseName();
+    }
+
     private static MySQLContainerCustomizer mysqlContainerCustomizer(long timeout) {
         return container -> container.withStartupTimeout(Duration.ofSeconds(timeout));
     }
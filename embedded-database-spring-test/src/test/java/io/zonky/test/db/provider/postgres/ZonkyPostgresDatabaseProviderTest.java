@@ -18,6 +18,9 @@ package io.zonky.test.db.provider.postgres;
 
 import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
 import io.zonky.test.db.preparer.DatabasePreparer;
+import io.zonky.test.db.provider.DatabaseRequest;
+import io.zonky.test.db.provider.DatabaseTemplate;
+import io.zonky.test.db.provider.EmbeddedDatabase;
 import io.zonky.test.db.provider.support.BlockingDatabaseWrapper;
 import io.zonky.test.db.support.TestDatabasePreparer;
 import org.junit.Before;
@@ -31,14 +34,32 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.mock.env.MockEnvironment;
 import org.springframework.util.SocketUtils;
 
+import javax.net.SocketFactory;
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import static io.zonky.test.db.provider.support.ShardedDatabaseTemplate.TEMPLATE_AFFINITY_THRESHOLD;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.when;
 
@@ -129,6 +150,204 @@ public class ZonkyPostgresDatabaseProviderTest {
         assertThat(sharedBuffers).isEqualTo("64MB");
     }
 
+    @Test
+    public void testServerProfile() throws Exception {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("zonky.test.database.postgres.server.properties.synchronous_commit", "on");
+
+        ZonkyPostgresDatabaseProvider provider = new ZonkyPostgresDatabaseProvider(environment, databaseCustomizers);
+        DataSource dataSource = provider.createDatabase(TestDatabasePreparer.empty());
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+
+        assertThat(jdbcTemplate.queryForObject("show fsync", String.class)).isEqualTo("off");
+        assertThat(jdbcTemplate.queryForObject("show full_page_writes", String.class)).isEqualTo("off");
+        assertThat(jdbcTemplate.queryForObject("show jit", String.class)).isEqualTo("off");
+        assertThat(jdbcTemplate.queryForObject("show synchronous_commit", String.class)).isEqualTo("on");
+    }
+
+    @Test
+    public void testRamDisk() throws Exception {
+        Path ramDisk = Files.createTempDirectory("ram-disk");
+
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("zonky.test.database.postgres.ram-disk.enabled", "true");
+        environment.setProperty("zonky.test.database.postgres.ram-disk.path", ramDisk.toString());
+        environment.setProperty("zonky.test.database.postgres.ram-disk.min-free-space", "1");
+
+        ZonkyPostgresDatabaseProvider provider = new ZonkyPostgresDatabaseProvider(environment, databaseCustomizers);
+        DataSource dataSource = provider.createDatabase(TestDatabasePreparer.empty());
+
+        String dataDirectory = new JdbcTemplate(dataSource).queryForObject("show data_directory", String.class);
+        assertThat(Paths.get(dataDirectory).toRealPath()).startsWith(ramDisk.toRealPath());
+    }
+
+    @Test
+    public void testRamDiskFallback() throws Exception {
+        Path ramDisk = Files.createTempDirectory("ram-disk");
+
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("zonky.test.database.postgres.ram-disk.enabled", "true");
+        environment.setProperty("zonky.test.database.postgres.ram-disk.path", ramDisk.toString());
+        environment.setProperty("zonky.test.database.postgres.ram-disk.min-free-space", String.valueOf(1024L * 1024 * 1024 * 1024));
+
+        ZonkyPostgresDatabaseProvider provider = new ZonkyPostgresDatabaseProvider(environment, databaseCustomizers);
+        DataSource dataSource = provider.createDatabase(TestDatabasePreparer.empty());
+
+        String dataDirectory = new JdbcTemplate(dataSource).queryForObject("show data_directory", String.class);
+        assertThat(Paths.get(dataDirectory).toRealPath().startsWith(ramDisk.toRealPath())).isFalse();
+        assertThat(ramDisk.toFile().list()).isEmpty();
+    }
+
+    @Test
+    public void testInitdbCache() throws Exception {
+        Path cacheDirectory = Files.createTempDirectory("initdb-cache");
+
+        List<String> dataDirectories = new ArrayList<>();
+        for (String workMem : new String[] { "8MB", "16MB" }) {
+            MockEnvironment environment = new MockEnvironment();
+            environment.setProperty("zonky.test.database.postgres.initdb-cache.directory", cacheDirectory.toString());
+            environment.setProperty("zonky.test.database.postgres.server.properties.work_mem", workMem);
+
+            ZonkyPostgresDatabaseProvider provider = new ZonkyPostgresDatabaseProvider(environment, databaseCustomizers);
+            DataSource dataSource = provider.createDatabase(TestDatabasePreparer.empty());
+
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            assertThat(jdbcTemplate.queryForObject("show work_mem", String.class)).isEqualTo(workMem);
+            dataDirectories.add(jdbcTemplate.queryForObject("show data_directory", String.class));
+        }
+
+        try (Stream<Path> cachedDirectories = Files.list(cacheDirectory)) {
+            assertThat(cachedDirectories.count()).isEqualTo(1);
+        }
+        assertThat(dataDirectories).doesNotHaveDuplicates();
+        for (String dataDirectory : dataDirectories) {
+            assertThat(Paths.get(dataDirectory).toRealPath().startsWith(cacheDirectory.toRealPath())).isFalse();
+        }
+    }
+
+    @Test
+    public void testUnixSocket() throws Exception {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("zonky.test.database.postgres.client.unix-socket.enabled", "true");
+        environment.setProperty("zonky.test.database.postgres.client.unix-socket.factory", RecordingSocketFactory.class.getName());
+
+        ZonkyPostgresDatabaseProvider provider = new ZonkyPostgresDatabaseProvider(environment, databaseCustomizers);
+        EmbeddedDatabase database = provider.createDatabase(DatabaseRequest.of(TestDatabasePreparer.empty()));
+
+        RecordingSocketFactory.socketPaths.clear();
+        assertThat(new JdbcTemplate(database).queryForObject("select 1", Integer.class)).isEqualTo(1);
+
+        int port = getPort(database);
+        assertThat(RecordingSocketFactory.socketPaths).isNotEmpty().allSatisfy(socketPath -> {
+            assertThat(socketPath).endsWith(".s.PGSQL." + port);
+            assertThat(new File(socketPath)).exists();
+        });
+        assertThat(database.getJdbcUrl()).isEqualTo(String.format("jdbc:postgresql://localhost:%s/%s?user=postgres", port, database.unwrap(PGSimpleDataSource.class).getDatabaseName()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnixSocketWithoutSocketFactory() {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("zonky.test.database.postgres.client.unix-socket.enabled", "true");
+        environment.setProperty("zonky.test.database.postgres.client.unix-socket.factory", "com.example.MissingSocketFactory");
+
+        new ZonkyPostgresDatabaseProvider(environment, databaseCustomizers);
+    }
+
+    @Test
+    public void testConnectionPooling() throws Exception {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("zonky.test.database.connection-pool.max-idle", "2");
+
+        ZonkyPostgresDatabaseProvider provider = new ZonkyPostgresDatabaseProvider(environment, databaseCustomizers);
+        EmbeddedDatabase database = provider.createDatabase(DatabaseRequest.of(TestDatabasePreparer.empty()));
+        String databaseName = database.unwrap(PGSimpleDataSource.class).getDatabaseName();
+
+        int backendPid;
+        try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            statement.execute("set search_path to pg_catalog");
+            backendPid = queryForInt(statement, "select pg_backend_pid()");
+        }
+
+        try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+            assertThat(connection.getAutoCommit()).isTrue();
+            assertThat(queryForInt(statement, "select pg_backend_pid()")).isEqualTo(backendPid);
+            try (ResultSet resultSet = statement.executeQuery("show search_path")) {
+                assertThat(resultSet.next()).isTrue();
+                assertThat(resultSet.getString(1)).isEqualTo("\"$user\", public");
+            }
+        }
+
+        database.close();
+
+        DataSource dataSource = provider.createDatabase(TestDatabasePreparer.empty());
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        for (int i = 0; i < 100 && jdbcTemplate.queryForObject("select count(*) from pg_database where datname = ?", Integer.class, databaseName) > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(jdbcTemplate.queryForObject("select count(*) from pg_database where datname = ?", Integer.class, databaseName)).isZero();
+    }
+
+    @Test
+    public void testConnectionLeakDetection() throws Exception {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("zonky.test.database.leak-detection.enabled", "true");
+
+        ZonkyPostgresDatabaseProvider provider = new ZonkyPostgresDatabaseProvider(environment, databaseCustomizers);
+        EmbeddedDatabase database = provider.createDatabase(DatabaseRequest.of(TestDatabasePreparer.empty()));
+        String databaseName = database.unwrap(PGSimpleDataSource.class).getDatabaseName();
+
+        Connection leakedConnection = database.getConnection();
+        Connection strayConnection = DriverManager.getConnection(database.getJdbcUrl());
+
+        database.close();
+
+        assertThat(leakedConnection.isClosed()).isTrue();
+
+        DataSource dataSource = provider.createDatabase(TestDatabasePreparer.empty());
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        for (int i = 0; i < 100 && jdbcTemplate.queryForObject("select count(*) from pg_database where datname = ?", Integer.class, databaseName) > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(jdbcTemplate.queryForObject("select count(*) from pg_database where datname = ?", Integer.class, databaseName)).isZero();
+        assertThat(strayConnection.isValid(1)).isFalse();
+    }
+
+    @Test
+    public void testSharding() throws Exception {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("zonky.test.database.postgres.shards", "2");
+
+        ZonkyPostgresDatabaseProvider provider = new ZonkyPostgresDatabaseProvider(environment, databaseCustomizers);
+        DatabaseTemplate template = provider.createTemplate(DatabaseRequest.of(TestDatabasePreparer.of(dataSource ->
+                new JdbcTemplate(dataSource).update("create table test_table (id int)"))));
+
+        Set<Integer> ports = new HashSet<>();
+        List<Connection> connections = new ArrayList<>();
+        try {
+            // the shard holding the template is preferred until its load exceeds the affinity threshold,
+            // every database holds an open connection, so the load grows until the template is cloned to the other shard
+            for (int i = 0; i < 3 * TEMPLATE_AFFINITY_THRESHOLD && ports.size() < 2; i++) {
+                EmbeddedDatabase database = provider.createDatabase(DatabaseRequest.of(TestDatabasePreparer.empty(), template));
+                ports.add(getPort(database));
+
+                Connection connection = database.getConnection();
+                connections.add(connection);
+                try (Statement statement = connection.createStatement()) {
+                    assertThat(queryForInt(statement, "select count(*) from test_table")).isZero();
+                }
+            }
+        } finally {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+        }
+
+        assertThat(ports).hasSize(2);
+    }
+
     @Test
     public void providersWithDefaultConfigurationShouldEquals() {
         MockEnvironment environment = new MockEnvironment();
@@ -182,7 +401,49 @@ public class ZonkyPostgresDatabaseProviderTest {
         }
     }
 
+    private static int queryForInt(Statement statement, String sql) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery(sql)) {
+            assertThat(resultSet.next()).isTrue();
+            return resultSet.getInt(1);
+        }
+    }
+
     private static int getPort(DataSource dataSource) throws SQLException {
         return dataSource.unwrap(PGSimpleDataSource.class).getPortNumber();
     }
+
+    // java 8 does not support unix sockets, so the connections still go through tcp and only the socket paths are recorded
+    public static class RecordingSocketFactory extends SocketFactory {
+
+        private static final List<String> socketPaths = new CopyOnWriteArrayList<>();
+
+        public RecordingSocketFactory(String socketPath) {
+            socketPaths.add(socketPath);
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new Socket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return new Socket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return new Socket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return new Socket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return new Socket(address, port, localAddress, localPort);
+        }
+    }
 }
\ No newline at end of file